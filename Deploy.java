@@ -3,8 +3,13 @@
 //JAVA 17+
 
 import java.io.*;
+import java.net.URI;
+import java.net.http.*;
 import java.nio.file.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import jdk.jfr.consumer.*;
 
 public class Deploy {
 
@@ -14,6 +19,201 @@ public class Deploy {
     static boolean webService = true;
     static String slotCookie = "X-Slot", managementPort = "", notifyPath = "/actuator/new-version", activeUsersPath = "/actuator/active-users";
     static int drainTimeout = 300;
+    static int keepReleases = 5;
+    static String warmupPaths = "/";
+    static int warmupRequests = 0;
+    static String packageCache = "~/.cache/boot2vm/packages";
+    static int packageMaxAge = 7;
+    static String runtime = "jdk", jlinkJdk = "", jlinkModulePath = "",
+            jlinkExtraModules = "jdk.crypto.ec,jdk.jcmd,jdk.jfr,jdk.management,jdk.unsupported,jdk.zipfs";
+    static boolean crac;
+    static boolean socketActivation;
+    static boolean hotswap;
+    static String buildModule = "", buildCache = "none", buildDaemon = "auto";
+    static boolean buildParallel, buildConfigurationCache;
+    static int appPort = 8080;
+    static boolean deployQos;
+    static int deployBwlimit = 0, deployNice = 10, deployWeight = 20;
+    static String deployIonice = "best-effort";
+    static boolean jarStore;
+    static String proxyProfile = "basic";
+    static String proxyHealthPath = "/";
+    static String sessionHandoffPath = "";
+    static String canarySteps = "";
+    static int canaryStepSeconds = 60, canaryMaxErrorRate = 1, canaryMaxP95Increase = 50;
+    static int watchSeconds = 0;
+    static int perfGateSeconds = 0, perfGateConcurrency = 8, perfGateMaxP99Increase = 25, perfGateMaxThroughputDrop = 10,
+            perfGateMaxErrorRate = 1;
+    static String perfGatePaths = "/";
+
+    /**
+     * Shared by the setup and swap scripts: the Caddy site address and the Caddyfile for the configured proxy
+     * profile, plus statistics from its access log. Expects APP_USER, HTTPS, DOMAIN, PROXY_PROFILE and HEALTH_PATH
+     * to be set; CANARY_WEIGHT, if set, sends that percentage of new sessions to the fallback slot, and
+     * TRAFFIC_STATS=yes writes the access log the canary and the watch compare the slots from.
+     */
+    static final String CADDY_SITE = """
+
+            TRAFFIC_STATS="${TRAFFIC_STATS:-no}"
+
+            # One site file per app, imported by /etc/caddy/Caddyfile, so several apps can share the host
+            CADDY_SITE_FILE="/etc/caddy/sites/$APP_USER.caddy"
+            # Servers set up before that keep their single site in the main Caddyfile until init is re-run
+            if ! grep -qs '^import /etc/caddy/sites/' /etc/caddy/Caddyfile; then
+                CADDY_SITE_FILE=/etc/caddy/Caddyfile
+            fi
+
+            # Base port of the app (the blue slot; green uses the next one), registered by Deploy init
+            APP_PORT="${APP_PORT:-$(awk -v user="$APP_USER" '$1 == user { print $2 }' /etc/boot2vm/ports 2>/dev/null || true)}"
+            APP_PORT="${APP_PORT:-8080}"
+
+            # Build Caddy site address (supports multiple domains)
+            if [ "$HTTPS" = "yes" ]; then
+                SITE_ADDR="$DOMAIN"
+            else
+                SITE_ADDR=""
+                for d in $DOMAIN; do SITE_ADDR="$SITE_ADDR http://$d"; done
+                SITE_ADDR="${SITE_ADDR# }"
+            fi
+
+            # reverse_proxy_to PORT [FALLBACK_PORT] — proxy to PORT. Requests fall back to the other slot's
+            # FALLBACK_PORT while PORT is down, and requests are retried for a few seconds instead of failing
+            # with a 502 while a slot restarts or stops.
+            reverse_proxy_to() {
+                local port="$1" fallback="${2:-}"
+                cat << CADDY
+                reverse_proxy localhost:$port${fallback:+ localhost:$fallback} {
+            CADDY
+                if [ -n "${CANARY_WEIGHT:-}" ] && [ -n "$fallback" ]; then
+                    # New sessions are split by weight, then stay on their slot via the cookie
+                    cat << CADDY
+                    lb_policy cookie boot2vm_upstream {
+                        fallback weighted_round_robin $((100 - CANARY_WEIGHT)) $CANARY_WEIGHT
+                    }
+            CADDY
+                else
+                    echo "        lb_policy first"
+                fi
+                cat << CADDY
+                    lb_try_duration 5s
+                    lb_try_interval 250ms
+                    retry_match {
+                        method GET HEAD
+                    }
+            CADDY
+                if [ -n "$fallback" ]; then
+                    cat << CADDY
+                    health_uri $HEALTH_PATH
+                    health_interval 2s
+                    health_timeout 2s
+                    fail_duration 10s
+            CADDY
+                fi
+                if [ "$PROXY_PROFILE" = "static" ]; then
+                    cat << CADDY
+                    transport http {
+                        keepalive 2m
+                        keepalive_idle_conns_per_host 64
+                    }
+            CADDY
+                fi
+                echo "    }"
+            }
+
+            # caddyfile PORT DIR [OTHER_PORT [OLD_COOKIE]] — site block serving from PORT, with the other blue-green
+            # slot's OTHER_PORT as fallback while a swap is under way; requests carrying OLD_COOKIE go to OTHER_PORT
+            # first (graceful drain).
+            # The static profile serves DIR/public directly from disk.
+            caddyfile() {
+                local port="$1" dir="$2" other="${3:-}" old_cookie="${4:-}"
+                echo "$SITE_ADDR {"
+                if [ "$TRAFFIC_STATS" = "yes" ]; then
+                    cat << CADDY
+                log {
+                    output file $ACCESS_LOG
+                }
+                log_append upstream_port {http.reverse_proxy.upstream.port}
+            CADDY
+                fi
+                if [ "$PROXY_PROFILE" = "static" ]; then
+                    echo "    encode zstd gzip"
+                fi
+                if [ -n "$old_cookie" ]; then
+                    cat << CADDY
+                @old_slot {
+                    header Cookie *$old_cookie*
+                }
+                handle @old_slot {
+            CADDY
+                    reverse_proxy_to "$other" "$port" | sed 's/^/    /'
+                    echo "    }"
+                fi
+                if [ "$PROXY_PROFILE" = "static" ]; then
+                    cat << CADDY
+                @static {
+                    file {
+                        root $dir/public
+                    }
+                    not path */
+                }
+                handle @static {
+                    root * $dir/public
+                    @hashed path /VAADIN/build/*
+                    header @hashed Cache-Control "public, max-age=31536000, immutable"
+                    @unhashed not path /VAADIN/build/*
+                    header @unhashed Cache-Control "public, max-age=3600"
+                    file_server {
+                        precompressed zstd gzip
+                    }
+                }
+            CADDY
+                fi
+                echo "    handle {"
+                reverse_proxy_to "$port" "$other" | sed 's/^/    /'
+                echo "    }"
+                echo "}"
+            }
+
+            # JSON access log of the site, written with TRAFFIC_STATS=yes; each proxied request is logged with the
+            # port of the slot that served it (upstream_port), which is not sent to the client
+            ACCESS_LOG="/var/log/caddy/access-$APP_USER.log"
+
+            # upstream_stats OFFSET PORT — "<requests> <5xx responses> <p95 ms>" for responses from PORT
+            # logged after byte OFFSET of the access log, or within its last N lines if OFFSET is -N
+            upstream_stats() {
+                local lines range="-c +$(($1 + 1))"
+                if [ "$1" -lt 0 ]; then range="-n ${1#-}"; fi
+                lines=$(tail $range "$ACCESS_LOG" 2>/dev/null | awk -v port="$2" '
+                    function field(name, v) {
+                        if (!match($0, "\\"" name "\\":\\"?[0-9.e+-]+")) return ""
+                        v = substr($0, RSTART, RLENGTH)
+                        sub(/^[^:]*:"?/, "", v)
+                        return v
+                    }
+                    field("upstream_port") == port { print field("status"), field("duration") }')
+                printf '%s\\n' "$lines" | awk 'NF { n++; if ($1 >= 500) e++ } END { printf "%d %d ", n, e }'
+                printf '%s\\n' "$lines" | awk 'NF { print $2 }' | sort -g \\
+                    | awk '{ d[NR] = $1 } END { i = int(NR * 0.95); if (i < 1) i = 1; printf "%d\\n", (NR ? d[i] * 1000 : 0) }'
+            }
+
+            # regression NEW_STATS OLD_STATS MAX_ERROR_PCT MAX_P95_INCREASE_PCT — prints why NEW is worse than OLD;
+            # compared once NEW has at least 20 requests (and OLD too, for latency)
+            regression() {
+                local n_new e_new p_new n_old e_old p_old rate_new rate_old
+                read -r n_new e_new p_new <<< "$1"
+                read -r n_old e_old p_old <<< "$2"
+                # 5xx rates in per mille
+                rate_new=$((n_new > 0 ? e_new * 1000 / n_new : 0))
+                rate_old=$((n_old > 0 ? e_old * 1000 / n_old : 0))
+                if [ "$n_new" -lt 20 ]; then
+                    return 0
+                elif [ "$rate_new" -gt $((rate_old + $3 * 10)) ]; then
+                    echo "5xx rate $((rate_new / 10))% (was $((rate_old / 10))%)"
+                elif [ "$n_old" -ge 20 ] && [ $((p_new * 100)) -gt $((p_old * (100 + $4))) ]; then
+                    echo "p95 ${p_new}ms (was ${p_old}ms)"
+                fi
+            }
+            """;
 
     static final String SETUP_SCRIPT = """
             #!/bin/bash
@@ -29,93 +229,309 @@ public class Deploy {
             FIREWALL="${9:-yes}"
             EXPOSE_NODES="${10:-no}"
             WEB_SERVICE="${11:-yes}"
+            PACKAGE_DIR="${12:-}"            # packages pushed from the local cache, if any
+            RUNTIME="${13:-jdk}"             # jdk | jlink (each release links the trimmed runtime it was built with)
+            CRAC="${14:-no}"                 # yes: CRaC JDK, slots restore from a checkpoint taken at deploy
+            SOCKET_ACTIVATION="${15:-no}"    # yes: systemd owns the app port and hands it to the JVM (single slot)
+            PROXY_PROFILE="${16:-basic}"     # basic | static (Caddy serves static assets and tunes upstreams)
+            HEALTH_PATH="${17:-/}"           # path Caddy health-checks both blue-green slots on
+            HOTSWAP="${18:-no}"              # yes: units load the class redefinition agent uploaded to /tmp
+            APP_PORT="${19:-8080}"           # base port: blue (or the single service) listens on it, green on +1
+            TRAFFIC_STATS="${20:-no}"        # yes: Caddy logs requests per slot for canary releases and the watch
+
+            # java_bin DIR — java for the app in /home/$APP_USER/DIR; with jlink, the runtime linked from its release
+            java_bin() {
+                if [ "$RUNTIME" = "jlink" ]; then
+                    echo "/home/$APP_USER/$1/runtime/bin/java"
+                else
+                    echo "/usr/bin/java"
+                fi
+            }
 
-            # Build Caddy site address (supports multiple domains)
-            if [ "$HTTPS" = "yes" ]; then
-                SITE_ADDR="$DOMAIN"
-            else
-                SITE_ADDR=""
-                for d in $DOMAIN; do SITE_ADDR="$SITE_ADDR http://$d"; done
-                SITE_ADDR="${SITE_ADDR# }"
+            """ + CADDY_SITE + """
+
+            WANT_CADDY=no
+            if [ "$WEB_SERVICE" = "yes" ] && [ "$PROXY" = "caddy" ]; then WANT_CADDY=yes; fi
+
+            # Provisioning is a sequence of steps. A step is skipped when its check passes and the
+            # checksum of its inputs and its own definition matches the one recorded on the last run.
+            STATE_DIR=/var/lib/boot2vm/steps
+            mkdir -p "$STATE_DIR"
+
+            # run_step NAME FUNCTION CHECK INPUT... — runs FUNCTION unless NAME is up to date
+            run_step() {
+                local name="$1" fn="$2" check="$3" sum
+                shift 3
+                sum=$( { printf '%s\\n' "$@"; declare -f "$fn"; } | sha256sum | cut -d' ' -f1)
+                if [ "$(cat "$STATE_DIR/$name" 2>/dev/null)" = "$sum" ] && eval "$check" >/dev/null 2>&1; then
+                    echo "--- $name: up to date ---"
+                    return 0
+                fi
+                echo "--- $name ---"
+                "$fn"
+                echo "$sum" > "$STATE_DIR/$name"
+            }
+
+            # write_if_changed FILE < content — replaces FILE only if content differs, sets CHANGED=1 if it did
+            # (feed it with a redirect rather than a pipe when CHANGED is needed, pipes run in a subshell)
+            write_if_changed() {
+                local file="$1" tmp
+                tmp=$(mktemp)
+                cat > "$tmp"
+                if [ -f "$file" ] && cmp -s "$tmp" "$file"; then
+                    rm -f "$tmp"
+                else
+                    mv "$tmp" "$file"
+                    chmod 644 "$file"
+                    CHANGED=1
+                fi
+            }
+
+            installed() {
+                local pkg
+                for pkg in "$@"; do
+                    dpkg-query -W -f='${Status}' "$pkg" 2>/dev/null | grep -q "install ok installed" || return 1
+                done
+            }
+
+            # JDK and Caddy come from the pushed package cache when present, otherwise from their repositories.
+            # A cached package is only used when it matches the SHA-256 file written when it was downloaded.
+            cached() {
+                [ -n "$PACKAGE_DIR" ] && [ -f "$PACKAGE_DIR/$1" ] \
+                    && (cd "$PACKAGE_DIR" && sha256sum --check --status "$1.sha256" 2>/dev/null)
+            }
+            JDK_TARBALL=""
+            CADDY_DEB=""
+            if cached temurin-25-jdk.tar.gz; then JDK_TARBALL="$PACKAGE_DIR/temurin-25-jdk.tar.gz"; fi
+            if cached caddy.deb; then CADDY_DEB="$PACKAGE_DIR/caddy.deb"; fi
+
+            # CRaC needs a JDK built with checkpoint/restore support, which only comes from the package cache
+            if [ "$CRAC" = "yes" ]; then
+                if ! cached zulu-crac-jdk.tar.gz; then
+                    echo "ERROR: CRAC=yes needs the verified CRaC JDK from the package cache (PACKAGE_CACHE must not be 'none')" >&2
+                    exit 1
+                fi
+                JDK_TARBALL="$PACKAGE_DIR/zulu-crac-jdk.tar.gz"
             fi
 
+            # A jlink runtime brings its own java, a native executable needs none; no system JDK needed
+            if [ "$RUNTIME" = "jlink" ] || [ "$APP_TYPE" = "native" ]; then JDK_TARBALL="none"; fi
+
+            PACKAGES="unattended-upgrades"
+            if [ -z "$JDK_TARBALL" ]; then PACKAGES="$PACKAGES temurin-25-jdk"; fi
+            if [ "$WANT_CADDY" = "yes" ]; then PACKAGES="$PACKAGES caddy"; fi
+            if [ "$FIREWALL" = "yes" ]; then PACKAGES="$PACKAGES ufw"; fi
+
             echo "=== Setting up server for user '$APP_USER' with domain '$DOMAIN' ==="
 
-            # Wait for any background apt/dpkg process to release the lock
-            echo "--- Waiting for package manager lock ---"
-            while ! flock -n /var/lib/dpkg/lock-frontend true 2>/dev/null; do
-                echo "  Package manager is busy, retrying in 10s ..."
-                sleep 10
-            done
+            wait_for_apt() {
+                # Wait for any background apt/dpkg process to release the lock
+                while ! flock -n /var/lib/dpkg/lock-frontend true 2>/dev/null; do
+                    echo "  Package manager is busy, retrying in 10s ..."
+                    sleep 10
+                done
+            }
+
+            # 1. Package repositories (Adoptium for JDK 25, Cloudsmith for Caddy) — keys fetched only once
+            step_repositories() {
+                # Nothing to fetch online when both come from the package cache
+                if [ -n "$JDK_TARBALL" ] && { [ "$WANT_CADDY" != "yes" ] || [ -n "$CADDY_DEB" ]; }; then
+                    return 0
+                fi
+                if ! command -v curl >/dev/null || ! command -v gpg >/dev/null; then
+                    wait_for_apt
+                    apt-get update
+                    apt-get install -y curl gpg
+                fi
+                if [ -z "$JDK_TARBALL" ]; then
+                    if [ ! -s /usr/share/keyrings/adoptium.gpg ]; then
+                        curl -1sLf https://packages.adoptium.net/artifactory/api/gpg/key/public \\
+                            | gpg --dearmor --yes -o /usr/share/keyrings/adoptium.gpg
+                    fi
+                    echo "deb [signed-by=/usr/share/keyrings/adoptium.gpg] https://packages.adoptium.net/artifactory/deb $(. /etc/os-release && echo "$VERSION_CODENAME") main" \\
+                        | write_if_changed /etc/apt/sources.list.d/adoptium.list
+                fi
+                if [ "$WANT_CADDY" = "yes" ] && [ -z "$CADDY_DEB" ]; then
+                    if [ ! -s /usr/share/keyrings/caddy-stable-archive-keyring.gpg ]; then
+                        curl -1sLf 'https://dl.cloudsmith.io/public/caddy/stable/gpg.key' \\
+                            | gpg --dearmor --yes -o /usr/share/keyrings/caddy-stable-archive-keyring.gpg
+                    fi
+                    curl -1sLf 'https://dl.cloudsmith.io/public/caddy/stable/debian.deb.txt' \\
+                        | write_if_changed /etc/apt/sources.list.d/caddy-stable.list
+                fi
+            }
+            run_step repositories step_repositories \\
+                "[ -n '$JDK_TARBALL' ] || [ -f /etc/apt/sources.list.d/adoptium.list ]" \\
+                "$WANT_CADDY" "$JDK_TARBALL" "$CADDY_DEB"
+
+            # 2. All packages in a single apt transaction, only when something is missing
+            step_packages() {
+                local missing="" from_repo=no pkg
+                for pkg in $PACKAGES; do
+                    if [ "$pkg" = "caddy" ] && [ -n "$CADDY_DEB" ]; then
+                        # Also when installed: a refreshed .deb from the cache upgrades it
+                        missing="$missing $CADDY_DEB"
+                    elif ! installed "$pkg"; then
+                        missing="$missing $pkg"
+                        from_repo=yes
+                    fi
+                done
+                if [ -n "$missing" ]; then
+                    wait_for_apt
+                    # Package lists are only needed for packages that come from a repository
+                    if [ "$from_repo" = "yes" ]; then apt-get update; fi
+                    apt-get install -y $missing
+                fi
+            }
+            run_step packages step_packages "installed $PACKAGES" "$PACKAGES" "${CADDY_DEB:+$(sha256sum < "$CADDY_DEB")}"
+
+            # JDK from the cached Temurin tarball, registered as the system java/jcmd
+            step_jdk_tarball() {
+                local target=/opt/boot2vm/jdk-25 tool
+                rm -rf "$target.new" "$target.old"
+                mkdir -p "$target.new"
+                tar -xzf "$JDK_TARBALL" -C "$target.new" --strip-components=1
+                if [ -d "$target" ]; then mv "$target" "$target.old"; fi
+                mv "$target.new" "$target"
+                rm -rf "$target.old"
+                # CRaC JDKs bundle criu, which needs root privileges to checkpoint and restore
+                if [ -f "$target/lib/criu" ]; then
+                    chown root:root "$target/lib/criu"
+                    chmod u+s "$target/lib/criu"
+                fi
+                for tool in java jcmd jfr; do
+                    update-alternatives --install "/usr/bin/$tool" "$tool" "$target/bin/$tool" 2500
+                    update-alternatives --set "$tool" "$target/bin/$tool" \\
+                        || echo "WARNING: could not select $target/bin/$tool as $tool"
+                done
+            }
+            if [ -n "$JDK_TARBALL" ] && [ "$JDK_TARBALL" != "none" ]; then
+                run_step jdk-tarball step_jdk_tarball "[ -x /opt/boot2vm/jdk-25/bin/java ]" "$(sha256sum < "$JDK_TARBALL")"
+            fi
 
-            # 1. Automatic security updates with nightly reboot if required
-            echo "--- Configuring unattended-upgrades ---"
-            apt-get update
-            apt-get install -y unattended-upgrades
-            cat > /etc/apt/apt.conf.d/20auto-upgrades << 'CONF'
+            # 3. Automatic security updates with nightly reboot if required
+            step_unattended_upgrades() {
+                write_if_changed /etc/apt/apt.conf.d/20auto-upgrades << 'CONF'
             APT::Periodic::Update-Package-Lists "1";
             APT::Periodic::Unattended-Upgrade "1";
             CONF
-            cat > /etc/apt/apt.conf.d/50unattended-upgrades-local << 'CONF'
+                write_if_changed /etc/apt/apt.conf.d/50unattended-upgrades-local << 'CONF'
             Unattended-Upgrade::Automatic-Reboot "true";
             Unattended-Upgrade::Automatic-Reboot-Time "02:00";
             CONF
-            systemctl enable --now unattended-upgrades
-
-            # 2. Install JDK 25 (Eclipse Adoptium / Temurin)
-            echo "--- Installing JDK 25 ---"
-            apt-get install -y wget apt-transport-https gpg
-            wget -qO - https://packages.adoptium.net/artifactory/api/gpg/key/public \\
-                | gpg --dearmor --yes -o /usr/share/keyrings/adoptium.gpg
-            echo "deb [signed-by=/usr/share/keyrings/adoptium.gpg] https://packages.adoptium.net/artifactory/deb $(lsb_release -cs) main" \\
-                > /etc/apt/sources.list.d/adoptium.list
-            apt-get update
-            apt-get install -y temurin-25-jdk
-
-            # 3. Create application user and set up SSH access
-            echo "--- Creating user '$APP_USER' ---"
-            if ! id "$APP_USER" &>/dev/null; then
-                useradd -m -s /bin/bash "$APP_USER"
-            fi
-            ADMIN_HOME=$(eval echo "~$ADMIN_USER")
-            mkdir -p "/home/$APP_USER/.ssh"
-            cp "$ADMIN_HOME/.ssh/authorized_keys" "/home/$APP_USER/.ssh/authorized_keys"
-            chown -R "$APP_USER:$APP_USER" "/home/$APP_USER/.ssh"
-            chmod 700 "/home/$APP_USER/.ssh"
-            chmod 600 "/home/$APP_USER/.ssh/authorized_keys"
-
-            # 4. Create application working directory/directories
-            echo "--- Creating app directory/directories ---"
-            if [ "$BLUE_GREEN" = "yes" ]; then
-                mkdir -p "/home/$APP_USER/app-blue" "/home/$APP_USER/app-green"
-                chown "$APP_USER:$APP_USER" "/home/$APP_USER/app-blue" "/home/$APP_USER/app-green"
-                echo "blue" > "/home/$APP_USER/active"
-                chown "$APP_USER:$APP_USER" "/home/$APP_USER/active"
-            else
-                mkdir -p "/home/$APP_USER/app"
-                chown "$APP_USER:$APP_USER" "/home/$APP_USER/app"
-            fi
+                systemctl enable --now unattended-upgrades
+            }
+            run_step unattended-upgrades step_unattended_upgrades "systemctl is-enabled unattended-upgrades"
 
-            # 5. Systemd service(s) for the application
-            echo "--- Installing systemd service(s) ---"
-            if [ "$BLUE_GREEN" = "yes" ]; then
-                for SLOT in blue green; do
-                    if [ "$SLOT" = "blue" ]; then SLOT_PORT=8080; else SLOT_PORT=8081; fi
-                    if [ "$MANAGEMENT_PORT_BLUE" != "0" ]; then
-                        if [ "$SLOT" = "blue" ]; then
-                            MGMT_ENV_LINE="Environment=MANAGEMENT_SERVER_PORT=$MANAGEMENT_PORT_BLUE"
-                        else
-                            MGMT_ENV_LINE="Environment=MANAGEMENT_SERVER_PORT=$((MANAGEMENT_PORT_BLUE + 1))"
+            # 4. Application user with the admin user's SSH keys (keys added later with add-key are kept)
+            step_user() {
+                if ! id "$APP_USER" &>/dev/null; then
+                    useradd -m -s /bin/bash "$APP_USER"
+                fi
+                local admin_home key
+                admin_home=$(eval echo "~$ADMIN_USER")
+                mkdir -p "/home/$APP_USER/.ssh"
+                touch "/home/$APP_USER/.ssh/authorized_keys"
+                while IFS= read -r key; do
+                    [ -z "$key" ] && continue
+                    grep -qxF "$key" "/home/$APP_USER/.ssh/authorized_keys" \\
+                        || echo "$key" >> "/home/$APP_USER/.ssh/authorized_keys"
+                done < "$admin_home/.ssh/authorized_keys"
+                chown -R "$APP_USER:$APP_USER" "/home/$APP_USER/.ssh"
+                chmod 700 "/home/$APP_USER/.ssh"
+                chmod 600 "/home/$APP_USER/.ssh/authorized_keys"
+            }
+            run_step "user-$APP_USER" step_user "id $APP_USER" "$ADMIN_USER" "$(cat "$(eval echo "~$ADMIN_USER")/.ssh/authorized_keys")"
+
+            # 5. Application working directory/directories
+            #    (deploys replace them with symlinks into /home/$APP_USER/releases)
+            step_directories() {
+                mkdir -p "/home/$APP_USER/releases"
+                chown "$APP_USER:$APP_USER" "/home/$APP_USER/releases"
+                if [ "$BLUE_GREEN" = "yes" ]; then
+                    for d in app-blue app-green; do
+                        if [ ! -e "/home/$APP_USER/$d" ]; then
+                            mkdir "/home/$APP_USER/$d"
+                            chown "$APP_USER:$APP_USER" "/home/$APP_USER/$d"
                         fi
-                    else
-                        MGMT_ENV_LINE=""
-                    fi
-                    if [ "$APP_TYPE" = "quarkus" ]; then
-                        EXEC_START="/usr/bin/java -jar /home/$APP_USER/app-$SLOT/quarkus-app/quarkus-run.jar"
-                    else
-                        EXEC_START="/usr/bin/java -jar /home/$APP_USER/app-$SLOT/$APP_USER.jar"
+                    done
+                    # Never reset the marker of a live blue-green setup
+                    if [ ! -f "/home/$APP_USER/active" ]; then
+                        echo "blue" > "/home/$APP_USER/active"
+                        chown "$APP_USER:$APP_USER" "/home/$APP_USER/active"
                     fi
-                    cat > "/etc/systemd/system/$APP_USER-$SLOT.service" << UNIT
+                elif [ ! -e "/home/$APP_USER/app" ]; then
+                    mkdir "/home/$APP_USER/app"
+                    chown "$APP_USER:$APP_USER" "/home/$APP_USER/app"
+                fi
+            }
+            run_step "directories-$APP_USER" step_directories "[ -d /home/$APP_USER/releases ]" "$BLUE_GREEN"
+
+            # Register the app's base port, so the swap scripts find it and other apps on the host get other ports
+            mkdir -p /etc/boot2vm
+            { grep -v "^$APP_USER " /etc/boot2vm/ports 2>/dev/null || true; echo "$APP_USER $APP_PORT"; } > /etc/boot2vm/ports.new
+            mv /etc/boot2vm/ports.new /etc/boot2vm/ports
+
+            # 6. Systemd service(s) for the application
+            step_service() {
+                CHANGED=0
+                if [ "$CRAC" = "yes" ]; then
+                    mkdir -p /opt/boot2vm "/home/$APP_USER/crac"
+                    chown "$APP_USER:$APP_USER" "/home/$APP_USER/crac"
+                    write_if_changed /opt/boot2vm/crac-launch << 'LAUNCHER'
+            #!/bin/bash
+            # crac-launch DIR JAVA ARGS... — restore from the checkpoint in DIR if it was taken from the same
+            # release, environment and JDK; otherwise start cold, ready to be checkpointed into DIR.new
+            set -u
+            DIR="$1"
+            JAVA="$2"
+            shift 2
+            STAMP=$( { readlink -f "$PWD"; cat "$HOME/.env" 2>/dev/null; readlink -f "$JAVA"; } | sha256sum | cut -d' ' -f1)
+            if [ -d "$DIR" ] && [ "$(cat "$DIR.stamp" 2>/dev/null)" = "$STAMP" ]; then
+                START=$SECONDS
+                "$JAVA" -XX:CRaCRestoreFrom="$DIR"
+                STATUS=$?
+                # A restore that fails right away (kernel, CPU features, PID in use) falls back to a cold start
+                if [ "$STATUS" -eq 0 ] || [ $((SECONDS - START)) -ge 10 ]; then exit "$STATUS"; fi
+                echo "CRaC restore from $DIR failed (exit $STATUS), starting cold" >&2
+            fi
+            rm -rf "$DIR" "$DIR.stamp" "$DIR.new"
+            mkdir -p "$DIR.new"
+            echo "$STAMP" > "$DIR.new.stamp"
+            exec "$JAVA" -XX:CRaCCheckpointTo="$DIR.new" "$@"
+            LAUNCHER
+                    chmod 755 /opt/boot2vm/crac-launch
+                fi
+                # The agent takes classes to redefine on a Unix socket in ~/.hotswap, which only the app user can open
+                if [ "$HOTSWAP" = "yes" ]; then
+                    install -D -m 644 /tmp/boot2vm-hotswap-agent.jar /opt/boot2vm/hotswap-agent.jar
+                    AGENT=" -javaagent:/opt/boot2vm/hotswap-agent.jar="
+                else
+                    AGENT=""
+                fi
+                if [ "$BLUE_GREEN" = "yes" ]; then
+                    for SLOT in blue green; do
+                        if [ "$SLOT" = "blue" ]; then SLOT_PORT=$APP_PORT; else SLOT_PORT=$((APP_PORT + 1)); fi
+                        if [ "$MANAGEMENT_PORT_BLUE" != "0" ]; then
+                            if [ "$SLOT" = "blue" ]; then
+                                MGMT_ENV_LINE="Environment=MANAGEMENT_SERVER_PORT=$MANAGEMENT_PORT_BLUE"
+                            else
+                                MGMT_ENV_LINE="Environment=MANAGEMENT_SERVER_PORT=$((MANAGEMENT_PORT_BLUE + 1))"
+                            fi
+                        else
+                            MGMT_ENV_LINE=""
+                        fi
+                        if [ "$APP_TYPE" = "quarkus" ]; then
+                            EXEC_START="$(java_bin "app-$SLOT") -jar /home/$APP_USER/app-$SLOT/quarkus-app/quarkus-run.jar"
+                        elif [ "$APP_TYPE" = "native" ]; then
+                            EXEC_START="/home/$APP_USER/app-$SLOT/$APP_USER"
+                        else
+                            EXEC_START="$(java_bin "app-$SLOT")${AGENT:+$AGENT/home/$APP_USER/.hotswap/$SLOT.sock} -jar /home/$APP_USER/app-$SLOT/$APP_USER.jar"
+                        fi
+                        if [ "$CRAC" = "yes" ]; then
+                            EXEC_START="/opt/boot2vm/crac-launch /home/$APP_USER/crac/$SLOT $EXEC_START"
+                        fi
+                        write_if_changed "/etc/systemd/system/$APP_USER-$SLOT.service" << UNIT
             [Unit]
             Description=Java Application ($APP_USER/$SLOT)
             After=network.target
@@ -136,82 +552,160 @@ public class Deploy {
             [Install]
             WantedBy=multi-user.target
             UNIT
-                done
-                systemctl daemon-reload
-                systemctl enable "$APP_USER-blue"
-            else
-                if [ "$APP_TYPE" = "quarkus" ]; then
-                    EXEC_START="/usr/bin/java -jar /home/$APP_USER/app/quarkus-app/quarkus-run.jar"
+                    done
+                    if [ "$CHANGED" = "1" ]; then systemctl daemon-reload; fi
+                    # Enable the blue slot only on a fresh setup; later the swap scripts manage this
+                    if ! systemctl is-enabled --quiet "$APP_USER-blue" && ! systemctl is-enabled --quiet "$APP_USER-green"; then
+                        systemctl enable "$APP_USER-blue"
+                    fi
                 else
-                    EXEC_START="/usr/bin/java -jar /home/$APP_USER/app/$APP_USER.jar"
-                fi
-                cat > "/etc/systemd/system/$APP_USER.service" << UNIT
+                    if [ "$APP_TYPE" = "quarkus" ]; then
+                        EXEC_START="$(java_bin app) -jar /home/$APP_USER/app/quarkus-app/quarkus-run.jar"
+                    elif [ "$APP_TYPE" = "native" ]; then
+                        EXEC_START="/home/$APP_USER/app/$APP_USER"
+                    else
+                        EXEC_START="$(java_bin app)${AGENT:+$AGENT/home/$APP_USER/.hotswap/app.sock} -jar /home/$APP_USER/app/$APP_USER.jar"
+                    fi
+                    # With socket activation the listening socket survives restarts, so connections queue in its
+                    # backlog while the JVM restarts; the JVM gets it as stdin (System.inheritedChannel)
+                    if [ "$SOCKET_ACTIVATION" = "yes" ]; then
+                        write_if_changed "/etc/systemd/system/$APP_USER.socket" << UNIT
+            [Unit]
+            Description=Java Application socket ($APP_USER)
+
+            [Socket]
+            ListenStream=$APP_PORT
+            Backlog=4096
+            NoDelay=true
+
+            [Install]
+            WantedBy=sockets.target
+            UNIT
+                        SOCKET_LINES="Requires=$APP_USER.socket"
+                        SOCKET_SERVICE_LINES="StandardInput=socket
+            StandardOutput=journal
+            StandardError=journal"
+                    else
+                        if [ -f "/etc/systemd/system/$APP_USER.socket" ]; then
+                            systemctl disable --now "$APP_USER.socket" 2>/dev/null || true
+                            rm -f "/etc/systemd/system/$APP_USER.socket"
+                            CHANGED=1
+                        fi
+                        SOCKET_LINES=""
+                        SOCKET_SERVICE_LINES=""
+                    fi
+                    write_if_changed "/etc/systemd/system/$APP_USER.service" << UNIT
             [Unit]
             Description=Java Application ($APP_USER)
             After=network.target
+            $SOCKET_LINES
 
             [Service]
             Type=simple
             User=$APP_USER
             WorkingDirectory=/home/$APP_USER/app
+            Environment=SERVER_PORT=$APP_PORT
+            Environment=QUARKUS_HTTP_PORT=$APP_PORT
             EnvironmentFile=-/home/$APP_USER/.env
             ExecStart=$EXEC_START
+            $SOCKET_SERVICE_LINES
             Restart=on-failure
             RestartSec=10
 
             [Install]
             WantedBy=multi-user.target
             UNIT
-                systemctl daemon-reload
-                systemctl enable "$APP_USER"
-            fi
+                    if [ "$CHANGED" = "1" ]; then systemctl daemon-reload; fi
+                    if [ "$SOCKET_ACTIVATION" = "yes" ]; then
+                        # The socket must own the port before the service starts again
+                        if ! systemctl is-active --quiet "$APP_USER.socket"; then
+                            systemctl stop "$APP_USER"
+                            systemctl enable --now "$APP_USER.socket"
+                        fi
+                    fi
+                    systemctl enable "$APP_USER"
+                fi
+            }
+            run_step "service-$APP_USER" step_service "[ -f /etc/systemd/system/$APP_USER.service ] || [ -f /etc/systemd/system/$APP_USER-blue.service ]" \\
+                "$BLUE_GREEN" "$APP_TYPE" "$MANAGEMENT_PORT_BLUE" "$RUNTIME" "$CRAC" "$SOCKET_ACTIVATION" \\
+                "$HOTSWAP" "$(if [ "$HOTSWAP" = "yes" ]; then sha256sum < /tmp/boot2vm-hotswap-agent.jar; fi)" "$APP_PORT"
+
+            # 7. Reverse proxy configuration (if configured and this is a web service)
+            step_proxy() {
+                local port=$APP_PORT dir="/home/$APP_USER/app"
+                if [ "$BLUE_GREEN" = "yes" ]; then
+                    dir="/home/$APP_USER/app-blue"
+                    if [ "$(cat "/home/$APP_USER/active" 2>/dev/null)" = "green" ]; then
+                        port=$((APP_PORT + 1))
+                        dir="/home/$APP_USER/app-green"
+                    fi
+                fi
+                CHANGED=0
+                # The main Caddyfile only holds global options and imports the sites of all apps on the host;
+                # a single-site Caddyfile from an earlier version is replaced by it
+                mkdir -p /etc/caddy/sites
+                write_if_changed /etc/caddy/Caddyfile << 'CADDY'
+            {
+                servers {
+                    protocols h1 h2 h3
+                }
+            }
 
-            # 6. Install reverse proxy (if configured and this is a web service)
+            import /etc/caddy/sites/*.caddy
+            CADDY
+                CADDY_SITE_FILE="/etc/caddy/sites/$APP_USER.caddy"
+                write_if_changed "$CADDY_SITE_FILE" < <(caddyfile "$port" "$dir")
+                # Caddy reads the synced static assets through the app user's group
+                if [ "$PROXY_PROFILE" = "static" ] && ! id -nG caddy | grep -qw "$APP_USER"; then
+                    usermod -aG "$APP_USER" caddy
+                    chmod g+rx "/home/$APP_USER"
+                    systemctl restart caddy
+                elif [ "$CHANGED" = "1" ]; then
+                    systemctl reload caddy
+                fi
+            }
             if [ "$WEB_SERVICE" != "yes" ]; then
                 echo "--- Not a web service; skipping reverse proxy ---"
-            elif [ "$PROXY" = "caddy" ]; then
-                echo "--- Installing Caddy ---"
-                apt-get install -y debian-keyring debian-archive-keyring apt-transport-https curl
-                curl -1sLf 'https://dl.cloudsmith.io/public/caddy/stable/gpg.key' \\
-                    | gpg --dearmor --yes -o /usr/share/keyrings/caddy-stable-archive-keyring.gpg
-                curl -1sLf 'https://dl.cloudsmith.io/public/caddy/stable/debian.deb.txt' \\
-                    > /etc/apt/sources.list.d/caddy-stable.list
-                apt-get update
-                apt-get install -y caddy
-                cat > /etc/caddy/Caddyfile << CADDY
-            $SITE_ADDR {
-                reverse_proxy localhost:8080
-            }
-            CADDY
-                systemctl reload caddy
+            elif [ "$WANT_CADDY" = "yes" ]; then
+                run_step "proxy-$APP_USER" step_proxy "[ -f /etc/caddy/sites/$APP_USER.caddy ]" "$SITE_ADDR" "$BLUE_GREEN" "$PROXY_PROFILE" "$HEALTH_PATH" \\
+                    "$APP_PORT"
             else
                 echo "--- Skipping reverse proxy installation ---"
             fi
 
-            # 7. Configure firewall
-            if [ "$FIREWALL" = "yes" ]; then
-                echo "--- Configuring firewall (ufw) ---"
-                apt-get install -y ufw
-                ufw --force reset
+            # 8. Firewall — rules are added and removed individually, never reset, so existing
+            #    connections and rules stay in place while init is re-run
+            step_firewall() {
                 ufw default deny incoming
                 ufw default allow outgoing
                 ufw allow ssh
                 if [ "$WEB_SERVICE" = "yes" ]; then
                     ufw allow 80/tcp
                     ufw allow 443/tcp
-                    if [ "$EXPOSE_NODES" = "yes" ]; then
-                        ufw allow 8080/tcp
-                        ufw allow 8081/tcp
-                    fi
+                    ufw allow 443/udp
+                else
+                    ufw delete allow 80/tcp >/dev/null 2>&1 || true
+                    ufw delete allow 443/tcp >/dev/null 2>&1 || true
+                    ufw delete allow 443/udp >/dev/null 2>&1 || true
+                fi
+                if [ "$WEB_SERVICE" = "yes" ] && [ "$EXPOSE_NODES" = "yes" ]; then
+                    ufw allow "$APP_PORT:$((APP_PORT + 1))/tcp"
+                else
+                    ufw delete allow "$APP_PORT:$((APP_PORT + 1))/tcp" >/dev/null 2>&1 || true
+                fi
+                if ! ufw status | grep -q "Status: active"; then
+                    ufw --force enable
                 fi
-                ufw --force enable
                 if [ "$WEB_SERVICE" != "yes" ]; then
                     echo "Firewall enabled: SSH allowed inbound; all else blocked (non-web service)"
                 elif [ "$EXPOSE_NODES" = "yes" ]; then
-                    echo "Firewall enabled: SSH, 80/tcp, 443/tcp, 8080/tcp, 8081/tcp allowed inbound"
+                    echo "Firewall enabled: SSH, 80/tcp, 443/tcp+udp, $APP_PORT-$((APP_PORT + 1))/tcp allowed inbound"
                 else
-                    echo "Firewall enabled: SSH, 80/tcp, 443/tcp allowed inbound; all else blocked"
+                    echo "Firewall enabled: SSH, 80/tcp, 443/tcp+udp allowed inbound; all else blocked"
                 fi
+            }
+            if [ "$FIREWALL" = "yes" ]; then
+                run_step firewall step_firewall "ufw status | grep -q 'Status: active'" "$WEB_SERVICE" "$EXPOSE_NODES" "$APP_PORT"
             else
                 echo "--- Skipping firewall configuration ---"
             fi
@@ -227,36 +721,42 @@ public class Deploy {
             HTTPS="${3:-yes}"
             DOMAIN="$4"
             MANAGEMENT_PORT_BLUE="${5:-0}"
-
-            # Build Caddy site address (supports multiple domains)
-            if [ "$HTTPS" = "yes" ]; then
-                SITE_ADDR="$DOMAIN"
-            else
-                SITE_ADDR=""
-                for d in $DOMAIN; do SITE_ADDR="$SITE_ADDR http://$d"; done
-                SITE_ADDR="${SITE_ADDR# }"
-            fi
-
-            LOCK_DIR="/home/$APP_USER/deploy.lock"
+            MODE="${6:-full}"                # full | start (stage only) | promote (reuse a started slot)
+            WARMUP_PATHS="${7:-/}"
+            WARMUP_REQUESTS="${8:-0}"
+            CRAC="${9:-no}"
+            PROXY_PROFILE="${10:-basic}"
+            HEALTH_PATH="${11:-/}"
+            CANARY="${12:-}"                 # STEPS:SECONDS:MAX_ERROR_PCT:MAX_P95_INCREASE_PCT, e.g. 5,25,50:60:1:50
+            WATCH="${13:-}"                  # SECONDS:MAX_ERROR_PCT:MAX_P95_INCREASE_PCT, e.g. 300:1:50
+            START_CPU_WEIGHT="${14:-}"       # optional: CPUWeight of the starting slot until it is healthy
+            TRAFFIC_STATS=no
+            if [ -n "$CANARY$WATCH" ]; then TRAFFIC_STATS=yes; fi
+
+            """ + CADDY_SITE + """
+
+            LOCK_FILE="/home/$APP_USER/deploy-swap.lock"
             ACTIVE_FILE="/home/$APP_USER/active"
 
-            # Acquire lock atomically — mkdir is atomic on local filesystems
-            if ! mkdir "$LOCK_DIR" 2>/dev/null; then
-                echo "ERROR: Another deploy is in progress. Remove $LOCK_DIR to force-unlock." >&2
+            # One swap at a time. The kernel drops the flock when the script exits, however it ends, so a crashed
+            # deploy leaves no stale lock to take over. Opened for appending, so waiting does not clear the owner.
+            exec 9>> "$LOCK_FILE"
+            if ! flock -n 9; then
+                echo "ERROR: Another deploy is in progress ($(cat "$LOCK_FILE" 2>/dev/null || echo unknown))." >&2
                 exit 1
             fi
-            trap 'rmdir "$LOCK_DIR" 2>/dev/null || true' EXIT
+            echo "pid $$, since $(date '+%F %T')" > "$LOCK_FILE"
 
             # Read current active slot (default to blue if file missing)
             ACTIVE=$(cat "$ACTIVE_FILE" 2>/dev/null || echo blue)
             if [ "$ACTIVE" = "blue" ]; then
                 INACTIVE="green"
-                ACTIVE_PORT=8080
-                INACTIVE_PORT=8081
+                ACTIVE_PORT=$APP_PORT
+                INACTIVE_PORT=$((APP_PORT + 1))
             else
                 INACTIVE="blue"
-                ACTIVE_PORT=8081
-                INACTIVE_PORT=8080
+                ACTIVE_PORT=$((APP_PORT + 1))
+                INACTIVE_PORT=$APP_PORT
             fi
 
             # Resolve management port for the new (inactive) slot
@@ -279,12 +779,23 @@ public class Deploy {
             INACTIVE_SERVICE="$APP_USER-$INACTIVE"
             ACTIVE_SERVICE="$APP_USER-$ACTIVE"
 
-            # Stop inactive service in case it is lingering from a failed previous deploy
-            systemctl stop "$INACTIVE_SERVICE" 2>/dev/null || true
+            if [ "$MODE" = "promote" ] && systemctl is-active --quiet "$INACTIVE_SERVICE"; then
+                # Started and warmed by 'Deploy stage --start'; keep it running
+                echo "--- $INACTIVE_LABEL ($INACTIVE_SERVICE) already running, promoting it ---"
+                STARTED=0
+            else
+                # Stop inactive service in case it is lingering from a failed previous deploy
+                systemctl stop "$INACTIVE_SERVICE" 2>/dev/null || true
 
-            # Start the new version
-            echo "--- Starting $INACTIVE_LABEL ($INACTIVE_SERVICE) ---"
-            systemctl start "$INACTIVE_SERVICE"
+                # Start the new version; with deploy QoS its startup (class loading, JIT) yields CPU to the
+                # live slot until it is healthy
+                echo "--- Starting $INACTIVE_LABEL ($INACTIVE_SERVICE) ---"
+                if [ -n "$START_CPU_WEIGHT" ]; then
+                    systemctl set-property --runtime "$INACTIVE_SERVICE" CPUWeight="$START_CPU_WEIGHT"
+                fi
+                systemctl start "$INACTIVE_SERVICE"
+                STARTED=1
+            fi
 
             # Health check: wait up to 60 seconds for the new slot to become ready
             echo "--- Health check $INACTIVE_LABEL ($HEALTH_URL, up to 60s) ---"
@@ -311,14 +822,144 @@ public class Deploy {
                 exit 1
             fi
 
-            # Swap traffic at the reverse proxy
+            # Warm up a freshly started slot (JIT, caches, connection pools) before it gets traffic
+            if [ "$STARTED" = "1" ] && [ "$WARMUP_REQUESTS" -gt 0 ]; then
+                echo "--- Warming up $INACTIVE_LABEL ($WARMUP_REQUESTS requests per path: $WARMUP_PATHS) ---"
+                for WARMUP_PATH in ${WARMUP_PATHS//,/ }; do
+                    for i in $(seq 1 "$WARMUP_REQUESTS"); do
+                        curl -s --max-time 10 -o /dev/null "http://localhost:$INACTIVE_PORT$WARMUP_PATH" 2>/dev/null || true
+                    done
+                done
+            fi
+
+            # Checkpoint a slot that started cold; from now on its unit restores warm from the checkpoint
+            CRAC_DIR="/home/$APP_USER/crac/$INACTIVE"
+            if [ "$CRAC" = "yes" ] && [ "$STARTED" = "1" ] && [ -d "$CRAC_DIR.new" ]; then
+                echo "--- Checkpointing $INACTIVE_LABEL (CRaC) ---"
+                PID=$(systemctl show -p MainPID --value "$INACTIVE_SERVICE")
+                runuser -u "$APP_USER" -- jcmd "$PID" JDK.checkpoint || true
+                for i in $(seq 1 60); do
+                    kill -0 "$PID" 2>/dev/null || break
+                    sleep 1
+                done
+                if ls "$CRAC_DIR.new"/*.img >/dev/null 2>&1; then
+                    mv "$CRAC_DIR.new" "$CRAC_DIR"
+                    mv "$CRAC_DIR.new.stamp" "$CRAC_DIR.stamp"
+                    echo "  Checkpoint written to $CRAC_DIR ($(du -sh "$CRAC_DIR" | cut -f1))"
+                else
+                    echo "WARNING: Checkpoint failed (see 'Deploy logs inactive'); $INACTIVE_LABEL keeps starting cold" >&2
+                fi
+                systemctl restart "$INACTIVE_SERVICE"
+                HEALTHY=0
+                for i in $(seq 1 60); do
+                    if curl -s --max-time 3 -o /dev/null "$HEALTH_URL" 2>/dev/null; then
+                        HEALTHY=1
+                        echo "  $INACTIVE_LABEL healthy after restart (${i}s)"
+                        break
+                    fi
+                    sleep 1
+                done
+                if [ "$HEALTHY" = "0" ]; then
+                    echo "ERROR: $INACTIVE_LABEL did not come back after the checkpoint — rolling back" >&2
+                    systemctl stop "$INACTIVE_SERVICE" 2>/dev/null || true
+                    rm -rf "$CRAC_DIR" "$CRAC_DIR.stamp"
+                    exit 1
+                fi
+            fi
+
+            if [ -n "$START_CPU_WEIGHT" ]; then
+                systemctl set-property --runtime "$INACTIVE_SERVICE" CPUWeight=
+            fi
+
+            if [ "$MODE" = "start" ]; then
+                echo "=== $INACTIVE_LABEL started and healthy; run 'Deploy promote' to switch traffic ==="
+                exit 0
+            fi
+
+            # From here on Caddy may send traffic to the new slot while the active marker still names the old one.
+            # If the script ends early (an error, or the SSH connection dropping during a canary or the watch: with
+            # SIGPIPE ignored, writing to it then fails), switch back while the old slot still runs, else complete.
+            end_swap() {
+                set +e
+                if [ "$PROXY" = "caddy" ] && [ "$(cat "$ACTIVE_FILE" 2>/dev/null || echo blue)" != "$INACTIVE" ]; then
+                    if systemctl is-active --quiet "$ACTIVE_SERVICE"; then
+                        echo "Swap interrupted, switching back to $ACTIVE_LABEL" >&2
+                        caddyfile "$ACTIVE_PORT" "/home/$APP_USER/app-$ACTIVE" > "$CADDY_SITE_FILE"
+                        systemctl reload caddy
+                        systemctl stop "$INACTIVE_SERVICE" 2>/dev/null
+                    else
+                        echo "$INACTIVE" > "$ACTIVE_FILE"
+                        systemctl enable "$INACTIVE_SERVICE"
+                        systemctl disable "$ACTIVE_SERVICE"
+                    fi
+                fi
+            }
+            trap '' PIPE
+            trap end_swap EXIT
+            trap 'exit 1' HUP INT TERM
+
+            # Canary: send a growing share of new sessions to the new slot, comparing it with the old one after each step
+            if [ -n "$CANARY" ] && [ "$PROXY" = "caddy" ]; then
+                IFS=: read -r CANARY_STEPS CANARY_SECONDS CANARY_MAX_ERRORS CANARY_MAX_P95 <<< "$CANARY"
+                for CANARY_WEIGHT in ${CANARY_STEPS//,/ }; do
+                    OFFSET=$(stat -c %s "$ACCESS_LOG" 2>/dev/null || echo 0)
+                    echo "--- Canary: $CANARY_WEIGHT% of new sessions to $INACTIVE_LABEL for ${CANARY_SECONDS}s ---"
+                    caddyfile "$ACTIVE_PORT" "/home/$APP_USER/app-$ACTIVE" "$INACTIVE_PORT" > "$CADDY_SITE_FILE"
+                    systemctl reload caddy
+                    sleep "$CANARY_SECONDS"
+                    NEW_STATS=$(upstream_stats "$OFFSET" "$INACTIVE_PORT")
+                    OLD_STATS=$(upstream_stats "$OFFSET" "$ACTIVE_PORT")
+                    echo "  requests/5xx/p95ms new: $NEW_STATS, old: $OLD_STATS"
+                    REASON=$(regression "$NEW_STATS" "$OLD_STATS" "$CANARY_MAX_ERRORS" "$CANARY_MAX_P95")
+                    if [ -n "$REASON" ]; then
+                        echo "ERROR: Canary $INACTIVE_LABEL regressed: $REASON — reverting to $ACTIVE_LABEL" >&2
+                        unset CANARY_WEIGHT
+                        caddyfile "$ACTIVE_PORT" "/home/$APP_USER/app-$ACTIVE" > "$CADDY_SITE_FILE"
+                        systemctl reload caddy
+                        systemctl stop "$INACTIVE_SERVICE" 2>/dev/null || true
+                        exit 1
+                    fi
+                done
+                unset CANARY_WEIGHT
+            fi
+
+            # Swap traffic at the reverse proxy. Until the old slot is stopped, it stays listed as the fallback
+            # upstream; only in this window, as it runs the last promoted release
             if [ "$PROXY" = "caddy" ]; then
+                # Baseline for the watch below: the old slot's most recent traffic
+                BASELINE=$(upstream_stats -5000 "$ACTIVE_PORT")
+                OFFSET=$(stat -c %s "$ACCESS_LOG" 2>/dev/null || echo 0)
                 echo "--- Swapping Caddy to $INACTIVE_LABEL ---"
-                cat > /etc/caddy/Caddyfile << CADDY
-            $SITE_ADDR {
-                reverse_proxy localhost:$INACTIVE_PORT
-            }
-            CADDY
+                caddyfile "$INACTIVE_PORT" "/home/$APP_USER/app-$INACTIVE" "$ACTIVE_PORT" > "$CADDY_SITE_FILE"
+                systemctl reload caddy
+            fi
+
+            # Watch the new slot against the baseline while the old one stays running but idle (it is only the
+            # fallback upstream), and switch back within seconds if it regresses
+            if [ -n "$WATCH" ] && [ "$PROXY" = "caddy" ]; then
+                IFS=: read -r WATCH_SECONDS WATCH_MAX_ERRORS WATCH_MAX_P95 <<< "$WATCH"
+                echo "--- Watching $INACTIVE_LABEL for ${WATCH_SECONDS}s (baseline requests/5xx/p95ms: $BASELINE) ---"
+                WATCHED=0
+                while [ "$WATCHED" -lt "$WATCH_SECONDS" ]; do
+                    sleep 10
+                    WATCHED=$((WATCHED + 10))
+                    STATS=$(upstream_stats "$OFFSET" "$INACTIVE_PORT")
+                    REASON=$(regression "$STATS" "$BASELINE" "$WATCH_MAX_ERRORS" "$WATCH_MAX_P95")
+                    if [ -n "$REASON" ]; then
+                        echo "ERROR: $INACTIVE_LABEL regressed after ${WATCHED}s: $REASON — switching back to $ACTIVE_LABEL" >&2
+                        caddyfile "$ACTIVE_PORT" "/home/$APP_USER/app-$ACTIVE" > "$CADDY_SITE_FILE"
+                        systemctl reload caddy
+                        systemctl stop "$INACTIVE_SERVICE" 2>/dev/null || true
+                        exit 1
+                    fi
+                    echo "  ${WATCHED}s: $STATS"
+                done
+            fi
+
+            # The old slot is no fallback anymore once it stops; a slot started later by stage or a perf gate
+            # must not get live traffic when the active one fails its health check
+            if [ "$PROXY" = "caddy" ]; then
+                caddyfile "$INACTIVE_PORT" "/home/$APP_USER/app-$INACTIVE" > "$CADDY_SITE_FILE"
                 systemctl reload caddy
             fi
 
@@ -346,36 +987,39 @@ public class Deploy {
             NOTIFY_PATH="${7:-/actuator/new-version}"
             ACTIVE_USERS_PATH="${8:-/actuator/active-users}"
             MANAGEMENT_PORT_BLUE="${9:-0}"
-
-            # Build Caddy site address (supports multiple domains)
-            if [ "$HTTPS" = "yes" ]; then
-                SITE_ADDR="$DOMAIN"
-            else
-                SITE_ADDR=""
-                for d in $DOMAIN; do SITE_ADDR="$SITE_ADDR http://$d"; done
-                SITE_ADDR="${SITE_ADDR# }"
-            fi
-
-            LOCK_DIR="/home/$APP_USER/deploy.lock"
+            MODE="${10:-full}"               # full | promote (reuse a started slot)
+            WARMUP_PATHS="${11:-/}"
+            WARMUP_REQUESTS="${12:-0}"
+            CRAC="${13:-no}"
+            PROXY_PROFILE="${14:-basic}"
+            HEALTH_PATH="${15:-/}"
+            SESSION_HANDOFF_PATH="${16:-}"   # optional: old slot hands pinned sessions over to the new one
+            START_CPU_WEIGHT="${17:-}"       # optional: CPUWeight of the starting slot until it is healthy
+
+            """ + CADDY_SITE + """
+
+            LOCK_FILE="/home/$APP_USER/deploy-swap.lock"
             ACTIVE_FILE="/home/$APP_USER/active"
 
-            # Acquire lock atomically — mkdir is atomic on local filesystems
-            if ! mkdir "$LOCK_DIR" 2>/dev/null; then
-                echo "ERROR: Another deploy is in progress. Remove $LOCK_DIR to force-unlock." >&2
+            # One swap at a time. The kernel drops the flock when the script exits, however it ends, so a crashed
+            # deploy leaves no stale lock to take over. Opened for appending, so waiting does not clear the owner.
+            exec 9>> "$LOCK_FILE"
+            if ! flock -n 9; then
+                echo "ERROR: Another deploy is in progress ($(cat "$LOCK_FILE" 2>/dev/null || echo unknown))." >&2
                 exit 1
             fi
-            trap 'rmdir "$LOCK_DIR" 2>/dev/null || true' EXIT
+            echo "pid $$, since $(date '+%F %T')" > "$LOCK_FILE"
 
             # Read current active slot (default to blue if file missing)
             ACTIVE=$(cat "$ACTIVE_FILE" 2>/dev/null || echo blue)
             if [ "$ACTIVE" = "blue" ]; then
                 INACTIVE="green"
-                INACTIVE_PORT=8081
-                ACTIVE_PORT=8080
+                INACTIVE_PORT=$((APP_PORT + 1))
+                ACTIVE_PORT=$APP_PORT
             else
                 INACTIVE="blue"
-                INACTIVE_PORT=8080
-                ACTIVE_PORT=8081
+                INACTIVE_PORT=$APP_PORT
+                ACTIVE_PORT=$((APP_PORT + 1))
             fi
 
             # Resolve management ports (Spring Boot management.server.port) for each slot
@@ -402,12 +1046,23 @@ public class Deploy {
             INACTIVE_SERVICE="$APP_USER-$INACTIVE"
             ACTIVE_SERVICE="$APP_USER-$ACTIVE"
 
-            # Stop inactive service in case it is lingering from a failed previous deploy
-            systemctl stop "$INACTIVE_SERVICE" 2>/dev/null || true
+            if [ "$MODE" = "promote" ] && systemctl is-active --quiet "$INACTIVE_SERVICE"; then
+                # Started and warmed by 'Deploy stage --start'; keep it running
+                echo "--- $INACTIVE_LABEL ($INACTIVE_SERVICE) already running, promoting it ---"
+                STARTED=0
+            else
+                # Stop inactive service in case it is lingering from a failed previous deploy
+                systemctl stop "$INACTIVE_SERVICE" 2>/dev/null || true
 
-            # Start the new version
-            echo "--- Starting $INACTIVE_LABEL ($INACTIVE_SERVICE) ---"
-            systemctl start "$INACTIVE_SERVICE"
+                # Start the new version; with deploy QoS its startup (class loading, JIT) yields CPU to the
+                # live slot until it is healthy
+                echo "--- Starting $INACTIVE_LABEL ($INACTIVE_SERVICE) ---"
+                if [ -n "$START_CPU_WEIGHT" ]; then
+                    systemctl set-property --runtime "$INACTIVE_SERVICE" CPUWeight="$START_CPU_WEIGHT"
+                fi
+                systemctl start "$INACTIVE_SERVICE"
+                STARTED=1
+            fi
 
             # Health check: wait up to 60 seconds for the new slot to become ready
             echo "--- Health check $INACTIVE_LABEL ($HEALTH_URL, up to 60s) ---"
@@ -434,20 +1089,59 @@ public class Deploy {
                 exit 1
             fi
 
+            # Warm up a freshly started slot (JIT, caches, connection pools) before it gets traffic
+            if [ "$STARTED" = "1" ] && [ "$WARMUP_REQUESTS" -gt 0 ]; then
+                echo "--- Warming up $INACTIVE_LABEL ($WARMUP_REQUESTS requests per path: $WARMUP_PATHS) ---"
+                for WARMUP_PATH in ${WARMUP_PATHS//,/ }; do
+                    for i in $(seq 1 "$WARMUP_REQUESTS"); do
+                        curl -s --max-time 10 -o /dev/null "http://localhost:$INACTIVE_PORT$WARMUP_PATH" 2>/dev/null || true
+                    done
+                done
+            fi
+
+            # Checkpoint a slot that started cold; from now on its unit restores warm from the checkpoint
+            CRAC_DIR="/home/$APP_USER/crac/$INACTIVE"
+            if [ "$CRAC" = "yes" ] && [ "$STARTED" = "1" ] && [ -d "$CRAC_DIR.new" ]; then
+                echo "--- Checkpointing $INACTIVE_LABEL (CRaC) ---"
+                PID=$(systemctl show -p MainPID --value "$INACTIVE_SERVICE")
+                runuser -u "$APP_USER" -- jcmd "$PID" JDK.checkpoint || true
+                for i in $(seq 1 60); do
+                    kill -0 "$PID" 2>/dev/null || break
+                    sleep 1
+                done
+                if ls "$CRAC_DIR.new"/*.img >/dev/null 2>&1; then
+                    mv "$CRAC_DIR.new" "$CRAC_DIR"
+                    mv "$CRAC_DIR.new.stamp" "$CRAC_DIR.stamp"
+                    echo "  Checkpoint written to $CRAC_DIR ($(du -sh "$CRAC_DIR" | cut -f1))"
+                else
+                    echo "WARNING: Checkpoint failed (see 'Deploy logs inactive'); $INACTIVE_LABEL keeps starting cold" >&2
+                fi
+                systemctl restart "$INACTIVE_SERVICE"
+                HEALTHY=0
+                for i in $(seq 1 60); do
+                    if curl -s --max-time 3 -o /dev/null "$HEALTH_URL" 2>/dev/null; then
+                        HEALTHY=1
+                        echo "  $INACTIVE_LABEL healthy after restart (${i}s)"
+                        break
+                    fi
+                    sleep 1
+                done
+                if [ "$HEALTHY" = "0" ]; then
+                    echo "ERROR: $INACTIVE_LABEL did not come back after the checkpoint — rolling back" >&2
+                    systemctl stop "$INACTIVE_SERVICE" 2>/dev/null || true
+                    rm -rf "$CRAC_DIR" "$CRAC_DIR.stamp"
+                    exit 1
+                fi
+            fi
+
+            if [ -n "$START_CPU_WEIGHT" ]; then
+                systemctl set-property --runtime "$INACTIVE_SERVICE" CPUWeight=
+            fi
+
             # Write split-traffic Caddyfile (cookie-pinned users stay on old slot)
             if [ "$PROXY" = "caddy" ]; then
                 echo "--- Writing drain-mode Caddyfile (old=$ACTIVE_LABEL new=$INACTIVE_LABEL, cookie $SLOT_COOKIE=$ACTIVE) ---"
-                cat > /etc/caddy/Caddyfile << CADDY
-            $SITE_ADDR {
-                @old_slot {
-                    header Cookie *$SLOT_COOKIE=$ACTIVE*
-                }
-                route @old_slot {
-                    reverse_proxy localhost:$ACTIVE_PORT
-                }
-                reverse_proxy localhost:$INACTIVE_PORT
-            }
-            CADDY
+                caddyfile "$INACTIVE_PORT" "/home/$APP_USER/app-$INACTIVE" "$ACTIVE_PORT" "$SLOT_COOKIE=$ACTIVE" > "$CADDY_SITE_FILE"
                 systemctl reload caddy
             fi
 
@@ -461,6 +1155,15 @@ public class Deploy {
                 echo "WARNING: Notify POST failed (non-fatal)"
             fi
 
+            # Let the old server hand pinned sessions over, so the drain only waits for those it could not
+            if [ -n "$SESSION_HANDOFF_PATH" ]; then
+                echo "--- Handing sessions over to $INACTIVE_LABEL (POST http://localhost:$ACTIVE_MGMT_PORT$SESSION_HANDOFF_PATH) ---"
+                if ! curl -s --max-time 60 -X POST "http://localhost:$ACTIVE_MGMT_PORT$SESSION_HANDOFF_PATH" 2>/dev/null; then
+                    echo "WARNING: Session handoff failed (non-fatal); pinned users drain as usual"
+                fi
+                echo
+            fi
+
             # Poll active-users endpoint until drained or timeout expires
             echo "--- Draining users from $ACTIVE_LABEL ($ACTIVE_SERVICE) (timeout: ${DRAIN_TIMEOUT}s) ---"
             ELAPSED=0
@@ -491,14 +1194,10 @@ public class Deploy {
                 echo "Forcing cutover after ${DRAIN_TIMEOUT}s"
             fi
 
-            # Switch Caddy to serve only the new backend
+            # Switch Caddy to serve only the new backend, without the old slot as fallback
             if [ "$PROXY" = "caddy" ]; then
                 echo "--- Switching Caddy to $INACTIVE_LABEL only ---"
-                cat > /etc/caddy/Caddyfile << CADDY
-            $SITE_ADDR {
-                reverse_proxy localhost:$INACTIVE_PORT
-            }
-            CADDY
+                caddyfile "$INACTIVE_PORT" "/home/$APP_USER/app-$INACTIVE" > "$CADDY_SITE_FILE"
                 systemctl reload caddy
             fi
 
@@ -520,7 +1219,15 @@ public class Deploy {
         switch (command) {
             case "init" -> init();
             case "deploy" -> { loadConfig(); deploy(); }
+            case "watch" -> { loadConfig(); watch(); }
+            case "stage" -> { loadConfig(); stage(args); }
+            case "promote" -> { loadConfig(); promote(); }
             case "logs" -> { loadConfig(); logs(args); }
+            case "profile" -> { loadConfig(); profile(args); }
+            case "heap" -> { loadConfig(); heap(args); }
+            case "bench" -> { loadConfig(); bench(args); }
+            case "releases" -> { loadConfig(); listReleases(); }
+            case "rollback" -> { loadConfig(); rollback(args); }
             case "env" -> { loadConfig(); env(args); }
             case "add-key" -> { loadConfig(); addKey(args); }
             case "clean" -> { loadConfig(); clean(); }
@@ -538,8 +1245,17 @@ public class Deploy {
         System.out.println("Commands:");
         System.out.println("  init           - Set up the server (run once)");
         System.out.println("  deploy         - Build, sync, and restart the app");
+        System.out.println("  watch          - Deploy, then push classes compiled by the IDE as they change");
+        System.out.println("  stage [--start] - Blue-green: build and sync to the inactive slot (optionally start and warm it)");
+        System.out.println("  promote        - Blue-green: health-check the staged slot and switch traffic to it");
+        System.out.println("  releases       - List releases kept on the server");
+        System.out.println("  rollback [n]   - Switch back n releases (default: 1) without building");
         System.out.println("  logs [n] [slot] - Tail the application logs (default: 200 lines)");
         System.out.println("                    slot: active (default), inactive, blue, green");
+        System.out.println("  profile [s] [slot] - Record JFR for s seconds (default: 30), fetch and summarize it");
+        System.out.println("  heap [histo|dump] [slot] - Print a class histogram or fetch a heap dump");
+        System.out.println("  bench [url|path] [--rps n] [--duration s] [--concurrency n] [--slot slot]");
+        System.out.println("                 [--save name] [--compare name] - Open-loop load test with latency percentiles");
         System.out.println("  env            - List environment variables on the server");
         System.out.println("  env set K=V    - Set env var(s), then restart the service");
         System.out.println("  env remove K   - Remove env var(s), then restart the service");
@@ -574,6 +1290,11 @@ public class Deploy {
         managementPort = props.getProperty("MANAGEMENT_PORT", "");
         notifyPath = props.getProperty("NOTIFY_PATH", "/actuator/new-version");
         activeUsersPath = props.getProperty("ACTIVE_USERS_PATH", "/actuator/active-users");
+        readOptions(props);
+        if (gracefulDrain && (!canarySteps.isEmpty() || watchSeconds > 0)) {
+            System.err.println("CANARY_STEPS and WATCH_SECONDS are not supported with BLUE_GREEN_GRACEFUL=yes");
+            System.exit(1);
+        }
 
         if (sshKey.endsWith(".pub")) {
             sshKey = sshKey.substring(0, sshKey.length() - 4);
@@ -588,6 +1309,69 @@ public class Deploy {
         }
     }
 
+    /** Optional keys that init does not prompt for; they are preserved when init rewrites vmhosting.conf. */
+    static void readOptions(Properties props) {
+        keepReleases = Integer.parseInt(props.getProperty("KEEP_RELEASES", "5"));
+        warmupPaths = props.getProperty("WARMUP_PATHS", "/");
+        warmupRequests = Integer.parseInt(props.getProperty("WARMUP_REQUESTS", "0"));
+        packageCache = props.getProperty("PACKAGE_CACHE", "~/.cache/boot2vm/packages");
+        packageMaxAge = Integer.parseInt(props.getProperty("PACKAGE_MAX_AGE", "7"));
+        runtime = props.getProperty("RUNTIME", "jdk");
+        jlinkJdk = props.getProperty("JLINK_JDK", "");
+        jlinkModulePath = props.getProperty("JLINK_MODULE_PATH", "");
+        jlinkExtraModules = props.getProperty("JLINK_EXTRA_MODULES", jlinkExtraModules);
+        crac = "yes".equalsIgnoreCase(props.getProperty("CRAC", "no"));
+        socketActivation = "yes".equalsIgnoreCase(props.getProperty("SOCKET_ACTIVATION", "no"));
+        hotswap = "yes".equalsIgnoreCase(props.getProperty("HOTSWAP", "no"));
+        buildModule = props.getProperty("BUILD_MODULE", "");
+        buildCache = props.getProperty("BUILD_CACHE", "none").isBlank() ? "none" : props.getProperty("BUILD_CACHE", "none");
+        buildDaemon = props.getProperty("BUILD_DAEMON", "auto");
+        buildParallel = "yes".equalsIgnoreCase(props.getProperty("BUILD_PARALLEL", "no"));
+        buildConfigurationCache = "yes".equalsIgnoreCase(props.getProperty("BUILD_CONFIGURATION_CACHE", "no"));
+        String port = props.getProperty("APP_PORT", "8080");
+        appPort = "auto".equalsIgnoreCase(port) ? 0 : Integer.parseInt(port);
+        jarStore = "yes".equalsIgnoreCase(props.getProperty("JAR_STORE", "no"));
+        deployQos = "yes".equalsIgnoreCase(props.getProperty("DEPLOY_QOS", "no"));
+        deployBwlimit = Integer.parseInt(props.getProperty("DEPLOY_BWLIMIT", "0"));
+        deployNice = Integer.parseInt(props.getProperty("DEPLOY_NICE", "10"));
+        deployIonice = props.getProperty("DEPLOY_IONICE", "best-effort");
+        deployWeight = Integer.parseInt(props.getProperty("DEPLOY_WEIGHT", "20"));
+        proxyProfile = props.getProperty("PROXY_PROFILE", "basic");
+        proxyHealthPath = props.getProperty("PROXY_HEALTH_PATH", "/");
+        sessionHandoffPath = props.getProperty("SESSION_HANDOFF_PATH", "");
+        canarySteps = props.getProperty("CANARY_STEPS", "").replace(" ", "");
+        for (String step : canarySteps.isEmpty() ? new String[0] : canarySteps.split(",", -1)) {
+            if (!step.matches("\\d{1,3}") || Integer.parseInt(step) < 1 || Integer.parseInt(step) > 100) {
+                System.err.println("CANARY_STEPS must be comma-separated whole percentages (1-100), got '" + canarySteps + "'");
+                System.exit(1);
+            }
+        }
+        canaryStepSeconds = wholeNumber(props, "CANARY_STEP_SECONDS", "60");
+        canaryMaxErrorRate = wholeNumber(props, "CANARY_MAX_ERROR_RATE", "1");
+        canaryMaxP95Increase = wholeNumber(props, "CANARY_MAX_P95_INCREASE", "50");
+        watchSeconds = wholeNumber(props, "WATCH_SECONDS", "0");
+        perfGateSeconds = Integer.parseInt(props.getProperty("PERF_GATE_SECONDS", "0"));
+        perfGatePaths = props.getProperty("PERF_GATE_PATHS", warmupPaths);
+        perfGateConcurrency = Integer.parseInt(props.getProperty("PERF_GATE_CONCURRENCY", "8"));
+        perfGateMaxP99Increase = Integer.parseInt(props.getProperty("PERF_GATE_MAX_P99_INCREASE", "25"));
+        perfGateMaxThroughputDrop = Integer.parseInt(props.getProperty("PERF_GATE_MAX_THROUGHPUT_DROP", "10"));
+        perfGateMaxErrorRate = Integer.parseInt(props.getProperty("PERF_GATE_MAX_ERROR_RATE", "1"));
+    }
+
+    /** Reads a non-negative integer option; the swap script compares these with shell arithmetic, which has no fractions. */
+    static int wholeNumber(Properties props, String key, String defaultValue) {
+        String value = props.getProperty(key, defaultValue).trim();
+        if (!value.matches("\\d{1,9}")) {
+            System.err.println(key + " must be a whole number, got '" + value + "'");
+            System.exit(1);
+        }
+        return Integer.parseInt(value);
+    }
+
+    static final List<String> PROMPTED_KEYS = List.of("HOST", "USER", "DOMAIN", "SSH_KEY", "ADMIN_USER", "HTTPS",
+            "PROXY", "APP_TYPE", "BLUE_GREEN", "BLUE_GREEN_GRACEFUL", "SLOT_COOKIE", "DRAIN_TIMEOUT", "MANAGEMENT_PORT",
+            "NOTIFY_PATH", "ACTIVE_USERS_PATH", "FIREWALL", "EXPOSE_NODES", "WEB_SERVICE");
+
     // -----------------------------------------------------------------------
     // init – interactively collect config, write vmhosting.conf, set up server
     // -----------------------------------------------------------------------
@@ -606,8 +1390,8 @@ public class Deploy {
                 defaultGracefulDrain = null, defaultSlotCookie = null, defaultDrainTimeout = null,
                 defaultManagementPort = null, defaultNotifyPath = null, defaultActiveUsersPath = null,
                 defaultFirewall = null, defaultExposeNodes = null, defaultWebService = null;
+        var props = new Properties();
         if (Files.exists(configPath)) {
-            var props = new Properties();
             try (var reader = Files.newBufferedReader(configPath)) {
                 props.load(reader);
             }
@@ -630,6 +1414,7 @@ public class Deploy {
             defaultExposeNodes = props.getProperty("EXPOSE_NODES");
             defaultWebService = props.getProperty("WEB_SERVICE");
         }
+        readOptions(props);
 
         // HOST (required)
         host = prompt(console, "Host", defaultHost);
@@ -668,7 +1453,7 @@ public class Deploy {
             https = false;
             proxy = "none";
         }
-        appType = prompt(console, "App type (spring-boot/quarkus/plain)",
+        appType = prompt(console, "App type (spring-boot/quarkus/plain/native)",
                 defaultAppType != null ? defaultAppType : detectAppType());
         if (webService) {
             String blueGreenStr = prompt(console, "Blue-green deployment (yes/no) [not recommended for low-end servers]",
@@ -703,18 +1488,35 @@ public class Deploy {
         boolean firewall = "yes".equalsIgnoreCase(firewallStr);
         boolean exposeNodes = false;
         if (firewall && webService) {
-            String exposeNodesStr = prompt(console, "Expose app server ports 8080/8081 for direct access (yes/no)",
+            String exposeNodesStr = prompt(console, "Expose the app server ports (APP_PORT and the next) for direct access (yes/no)",
                     defaultExposeNodes != null ? defaultExposeNodes : "no");
             exposeNodes = "yes".equalsIgnoreCase(exposeNodesStr);
         }
 
-        // Collect environment variables
-        System.out.println("Enter environment variables for the app (stored on server only, never locally).");
-        System.out.println("Format: KEY=VALUE (values with spaces must be quoted: KEY=\"value with spaces\")");
-        var envVars = new ArrayList<String>();
-        while (true) {
-            String entry = console.readLine("Environment variable (KEY=VALUE, blank to finish): ").trim();
-            if (entry.isEmpty()) break;
+        if (crac && (!blueGreen || !"jdk".equals(runtime) || "native".equals(appType))) {
+            System.err.println("CRAC=yes requires BLUE_GREEN=yes, RUNTIME=jdk and a JVM app type");
+            System.exit(1);
+        }
+        if (hotswap && (crac || !Set.of("spring-boot", "plain").contains(appType))) {
+            System.err.println("HOTSWAP=yes requires APP_TYPE=spring-boot or plain and no CRaC");
+            System.exit(1);
+        }
+        if (gracefulDrain && (!canarySteps.isEmpty() || watchSeconds > 0)) {
+            System.err.println("CANARY_STEPS and WATCH_SECONDS are not supported with BLUE_GREEN_GRACEFUL=yes");
+            System.exit(1);
+        }
+        if (socketActivation && blueGreen) {
+            System.err.println("SOCKET_ACTIVATION=yes is for single-slot services; blue-green already restarts without downtime");
+            System.exit(1);
+        }
+
+        // Collect environment variables
+        System.out.println("Enter environment variables for the app (stored on server only, never locally).");
+        System.out.println("Format: KEY=VALUE (values with spaces must be quoted: KEY=\"value with spaces\")");
+        var envVars = new ArrayList<String>();
+        while (true) {
+            String entry = console.readLine("Environment variable (KEY=VALUE, blank to finish): ").trim();
+            if (entry.isEmpty()) break;
             if (!entry.contains("=")) {
                 System.err.println("  Invalid format — expected KEY=VALUE");
                 continue;
@@ -742,6 +1544,12 @@ public class Deploy {
                 + "FIREWALL=" + (firewall ? "yes" : "no") + "\n"
                 + "EXPOSE_NODES=" + (exposeNodes ? "yes" : "no") + "\n"
                 + "WEB_SERVICE=" + (webService ? "yes" : "no") + "\n");
+        // Keep optional keys set by hand (KEEP_RELEASES, WARMUP_PATHS, ...)
+        for (String key : new TreeSet<>(props.stringPropertyNames())) {
+            if (!PROMPTED_KEYS.contains(key)) {
+                Files.writeString(configPath, key + "=" + props.getProperty(key) + "\n", StandardOpenOption.APPEND);
+            }
+        }
         System.out.println("Wrote vmhosting.conf");
 
         // Resolve the private key path for SSH connections (strip .pub if present)
@@ -755,6 +1563,16 @@ public class Deploy {
 
         // Upload and execute setup script
         System.out.println("Initializing server " + host + " ...");
+        if (appPort == 0) {
+            appPort = allocatePort();
+            Files.writeString(configPath, Files.readString(configPath).replaceFirst("(?m)^APP_PORT=.*$", "APP_PORT=" + appPort));
+            System.out.println("Allocated ports " + appPort + "-" + (appPort + 1) + " (APP_PORT in vmhosting.conf)");
+        }
+        String packageDir = pushPackageCache(webService && "caddy".equals(proxy));
+
+        if (hotswap) {
+            scp(buildHotswapAgent().toString(), adminUser + "@" + host + ":/tmp/boot2vm-hotswap-agent.jar");
+        }
 
         Path tempScript = Files.createTempFile("setup-server", ".sh");
         Files.writeString(tempScript, SETUP_SCRIPT);
@@ -767,7 +1585,16 @@ public class Deploy {
                 + " " + (managementPort != null && !managementPort.isBlank() ? managementPort : "0")
                 + " " + (firewall ? "yes" : "no")
                 + " " + (exposeNodes ? "yes" : "no")
-                + " " + (webService ? "yes" : "no"));
+                + " " + (webService ? "yes" : "no")
+                + " '" + packageDir + "'"
+                + " " + runtime
+                + " " + (crac ? "yes" : "no")
+                + " " + (socketActivation ? "yes" : "no")
+                + " " + proxyProfile
+                + " '" + proxyHealthPath + "'"
+                + " " + (hotswap ? "yes" : "no")
+                + " " + appPort
+                + " " + (!canarySteps.isEmpty() || watchSeconds > 0 ? "yes" : "no"));
 
         Files.delete(tempScript);
 
@@ -802,7 +1629,45 @@ public class Deploy {
     // deploy – build, sync, restart
     // -----------------------------------------------------------------------
     static void deploy() throws Exception {
+        remindOutdatedJdk();
         // 1. Build
+        String syncSource = build();
+        release(syncSource);
+    }
+
+    /** Push a prepared build to the server and restart (or swap) the service onto it. */
+    static void release(String syncSource) throws Exception {
+        if (hotswap) {
+            saveHotswapIndex(syncSource);
+            if (hotswapClasses(syncSource)) {
+                return;
+            }
+        }
+        if (blueGreen) {
+            deployBlueGreen(syncSource);
+            return;
+        }
+
+        // 2. Sync to a new release directory on the server, then wait for our deploy turn and point app/ at it
+        System.out.println("Syncing to server ...");
+        String releaseId = syncRelease(syncSource);
+        try (var turn = awaitDeployTurn(releaseId)) {
+            if (turn == null) {
+                return;
+            }
+            releases("activate", "app", releaseId);
+
+            // 3. Restart the systemd service
+            System.out.println("Restarting service ...");
+            sshAsRoot("systemctl restart " + user);
+            pruneReleases();
+        }
+
+        System.out.println("Deployed successfully! Release: " + releaseId);
+    }
+
+    /** Build the project and prepare its output for syncing; returns the rsync source. */
+    static String build() throws Exception {
         System.out.println("Building application ...");
         boolean mavenw = Files.exists(Path.of("mvnw"));
         boolean gradlew = Files.exists(Path.of("gradlew"));
@@ -810,151 +1675,1632 @@ public class Deploy {
         boolean gradle = Files.exists(Path.of("build.gradle")) || Files.exists(Path.of("build.gradle.kts"));
         boolean quarkus = "quarkus".equals(appType);
         boolean plain = "plain".equals(appType);
+        boolean nativeImage = "native".equals(appType);
         String gradleTask = quarkus ? "quarkusBuild" : (plain ? "build" : "bootJar");
+        String[] mavenGoals = {"-DskipTests", "package"};
+        String[] gradleArgs = {"-x", "test", gradleTask};
+        if (nativeImage) {
+            // Spring Boot native (GraalVM Native Build Tools) or the Quarkus native build
+            boolean quarkusNative = "quarkus".equals(detectAppType());
+            mavenGoals = quarkusNative
+                    ? new String[] {"-DskipTests", "-Dnative", "package"}
+                    : new String[] {"-DskipTests", "-Pnative", "native:compile"};
+            gradleArgs = quarkusNative
+                    ? new String[] {"-x", "test", "build", "-Dquarkus.native.enabled=true", "-Dquarkus.package.jar.enabled=false"}
+                    : new String[] {"-x", "test", "nativeCompile"};
+        }
 
-        if (mavenw) {
-            run("./mvnw", "-DskipTests", "package");
-        } else if (gradlew) {
-            run("./gradlew", "-x", "test", gradleTask);
-        } else if (pom) {
-            run("mvn", "-DskipTests", "package");
-        } else if (gradle) {
-            run("gradle", "-x", "test", gradleTask);
+        if (!buildModule.isBlank()) {
+            gradleArgs[2] = ":" + buildModule.replace('/', ':') + ":" + gradleArgs[2];
+        }
+        if (mavenw || (pom && !gradlew)) {
+            run(mavenCommand(mavenw, mavenGoals));
+        } else if (gradlew || gradle) {
+            run(gradleCommand(gradlew, gradleArgs));
         } else {
             System.err.println("No Maven or Gradle project found in current directory");
             System.exit(1);
         }
 
-        if (blueGreen) {
-            deployBlueGreen(quarkus, plain, mavenw, pom);
-            return;
+        if (nativeImage) {
+            return stageNativeExecutable(mavenw || pom) + "/";
         }
+        return prepareSyncSource(quarkus, plain, mavenw, pom);
+    }
 
-        // 2. Prepare and sync to server
-        System.out.println("Syncing to server ...");
-        String syncSource;
+    /**
+     * Maven with the build accelerations: mvnd when installed (warm build JVMs, parallel by itself); only
+     * BUILD_MODULE and the modules it depends on; and, when enabled, -T 1C and the build cache extension's cache
+     * in BUILD_CACHE (if the project uses that extension).
+     */
+    static String[] mavenCommand(boolean mavenw, String[] goals) throws IOException {
+        boolean mvnd = !"no".equals(buildDaemon) && onPath("mvnd");
+        var cmd = new ArrayList<>(List.of(concat(mvnd ? "mvnd" : mavenw ? "./mvnw" : "mvn", goals)));
+        if (!buildModule.isBlank()) {
+            cmd.addAll(List.of("-pl", buildModule, "-am"));
+        }
+        if (buildParallel && !mvnd) {
+            cmd.addAll(List.of("-T", "1C"));
+        }
+        Path extensions = Path.of(".mvn", "extensions.xml");
+        if (!"none".equals(buildCache) && Files.exists(extensions)
+                && Files.readString(extensions).contains("maven-build-cache-extension")) {
+            cmd.add("-Dmaven.build.cache.location=" + Path.of(expandHome(buildCache), "maven").toAbsolutePath());
+        }
+        return cmd.toArray(String[]::new);
+    }
+
+    /**
+     * Gradle with the build accelerations: the daemon, and when enabled the configuration cache (problems only
+     * warn, so incompatible plugins still build), --parallel, and the build cache in BUILD_CACHE via an init script.
+     */
+    static String[] gradleCommand(boolean gradlew, String[] args) throws IOException {
+        var cmd = new ArrayList<>(List.of(concat(gradlew ? "./gradlew" : "gradle", args)));
+        if (buildParallel) {
+            cmd.add("--parallel");
+        }
+        if ("no".equals(buildDaemon)) {
+            cmd.add("--no-daemon");
+        } else if (buildConfigurationCache) {
+            cmd.addAll(List.of("--configuration-cache", "--configuration-cache-problems=warn"));
+        }
+        if (!"none".equals(buildCache)) {
+            Path dir = Path.of(expandHome(buildCache)).toAbsolutePath();
+            Path initScript = dir.resolve("boot2vm-init.gradle");
+            String script = "gradle.settingsEvaluated { settings ->\n"
+                    + "    settings.buildCache { local { directory = new File('"
+                    + dir.resolve("gradle").toString().replace('\\', '/') + "') } }\n"
+                    + "}\n";
+            Files.createDirectories(dir);
+            // Rewritten only when it changes, as it is an input of the configuration cache
+            if (!Files.exists(initScript) || !Files.readString(initScript).equals(script)) {
+                Files.writeString(initScript, script);
+            }
+            cmd.addAll(List.of("--build-cache", "--init-script", initScript.toString()));
+        }
+        return cmd.toArray(String[]::new);
+    }
 
+    static boolean onPath(String command) {
+        for (String dir : System.getenv().getOrDefault("PATH", "").split(File.pathSeparator)) {
+            if (!dir.isEmpty() && Files.isExecutable(Path.of(dir, command))) return true;
+        }
+        return false;
+    }
+
+    /** The directory of BUILD_MODULE, where its build output is; the project directory by default. */
+    static Path moduleDir() {
+        return Path.of(buildModule);
+    }
+
+    static String[] concat(String command, String... args) {
+        var cmd = new ArrayList<String>();
+        cmd.add(command);
+        cmd.addAll(List.of(args));
+        return cmd.toArray(String[]::new);
+    }
+
+    /** Prepare the local build output for rsync and return the rsync source argument. */
+    static String prepareSyncSource(boolean quarkus, boolean plain, boolean mavenw, boolean pom) throws Exception {
         if (quarkus) {
             // Quarkus builds an already-exploded app in target/quarkus-app
-            syncSource = "target/quarkus-app";
-            run("rsync", "-az", "--delete", "--stats",
-                    "-e", "ssh -i " + sshKey + " -o StrictHostKeyChecking=accept-new",
-                    syncSource,
-                    user + "@" + host + ":/home/" + user + "/app/");
-        } else if (plain) {
+            return moduleDir().resolve("target/quarkus-app").toString();
+        }
+        if (plain) {
             Path staging = stagePlainJar(mavenw, pom);
-            run("rsync", "-az", "--delete", "--stats",
-                    "-e", "ssh -i " + sshKey + " -o StrictHostKeyChecking=accept-new",
-                    staging + "/",
-                    user + "@" + host + ":/home/" + user + "/app/");
+            if ("static".equals(proxyProfile)) {
+                extractStaticAssets(staging.resolve(user + ".jar"), staging.resolve("public"));
+            }
+            return staging + "/";
+        }
+        // Spring Boot: extract fat jar for efficient rsync (lib/ changes rarely)
+        Path jarDir = (mavenw || pom) ? moduleDir().resolve("target") : moduleDir().resolve("build/libs");
+        Path jar = findJar(jarDir);
+        System.out.println("Found jar: " + jar);
+
+        Path extracted = moduleDir().resolve("target/extracted");
+        if (Files.exists(extracted)) {
+            deleteRecursively(extracted);
+        }
+        run("java", "-Djarmode=tools", "-jar", jar.toString(),
+                "extract", "--destination", extracted.toString());
+
+        Path extractRoot = findExtractedRoot(extracted);
+
+        Path extractedJar = findJar(extractRoot);
+        Path renamedJar = extractRoot.resolve(user + ".jar");
+        if (!extractedJar.getFileName().toString().equals(user + ".jar")) {
+            Files.move(extractedJar, renamedJar, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if ("static".equals(proxyProfile)) {
+            extractStaticAssets(renamedJar, extractRoot.resolve("public"));
+        }
+        return extractRoot + "/";
+    }
+
+    // -----------------------------------------------------------------------
+    // watch – push classes compiled by the IDE to the server as they change
+    // -----------------------------------------------------------------------
+    static void watch() throws Exception {
+        if (!"spring-boot".equals(appType) && !"plain".equals(appType)) {
+            System.err.println("Deploy watch needs APP_TYPE=spring-boot or plain (Quarkus has its own dev mode)");
+            System.exit(1);
+        }
+        // One full deploy, so the local staging directory and the server start out identical
+        String syncSource = build();
+        release(syncSource);
+
+        List<Path> roots = classOutputDirs();
+        Path jar = Path.of(syncSource, user + ".jar");
+        var watcher = FileSystems.getDefault().newWatchService();
+        var dirs = new HashMap<WatchKey, Path>();
+        var rootOf = new HashMap<WatchKey, Path>();
+        for (Path root : roots) {
+            registerTree(watcher, root, root, dirs, rootOf);
+        }
+        System.out.println("Watching " + roots + " – compile in the IDE to push changes, Ctrl+C to stop");
+
+        while (true) {
+            // Entry name -> file, null for deleted; collected until the compiler has been quiet for 300ms
+            var changed = new TreeMap<String, Path>();
+            WatchKey key = watcher.take();
+            do {
+                Path dir = dirs.get(key), root = rootOf.get(key);
+                for (var event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        for (Path r : roots) {
+                            collectFiles(r, r, changed);
+                        }
+                        continue;
+                    }
+                    Path file = dir.resolve((Path) event.context());
+                    String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        changed.put(name, null);
+                    } else if (Files.isDirectory(file)) {
+                        registerTree(watcher, root, file, dirs, rootOf);
+                        collectFiles(root, file, changed);
+                    } else {
+                        changed.put(name, file);
+                    }
+                }
+                key.reset();
+                key = watcher.poll(300, java.util.concurrent.TimeUnit.MILLISECONDS);
+            } while (key != null);
+            if (changed.isEmpty()) {
+                continue;
+            }
+
+            long start = System.nanoTime();
+            patchJar(jar, changed);
+            if ("static".equals(proxyProfile)) {
+                Path publicDir = Path.of(syncSource, "public");
+                if (Files.exists(publicDir)) {
+                    deleteRecursively(publicDir);
+                }
+                extractStaticAssets(jar, publicDir);
+            }
+            System.out.println(changed.size() + " changed file(s): " + String.join(", ", changed.keySet()));
+            release(syncSource);
+            System.out.printf("Pushed in %.1fs, watching ...%n", (System.nanoTime() - start) / 1e9);
+        }
+    }
+
+    /** Where the IDE or the build compiles the project's own classes and resources to. */
+    static List<Path> classOutputDirs() {
+        boolean maven = Files.exists(Path.of("pom.xml"));
+        return (maven ? List.of("target/classes")
+                : List.of("build/classes/java/main", "build/classes/kotlin/main", "build/resources/main"))
+                .stream().map(moduleDir()::resolve).filter(Files::isDirectory).toList();
+    }
+
+    static void registerTree(WatchService watcher, Path root, Path dir, Map<WatchKey, Path> dirs,
+            Map<WatchKey, Path> rootOf) throws IOException {
+        try (var walk = Files.walk(dir)) {
+            for (Path d : walk.filter(Files::isDirectory).toList()) {
+                var key = d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                dirs.put(key, d);
+                rootOf.put(key, root);
+            }
+        }
+    }
+
+    static void collectFiles(Path root, Path dir, Map<String, Path> changed) throws IOException {
+        try (var walk = Files.walk(dir)) {
+            walk.filter(Files::isRegularFile).forEach(f ->
+                    changed.put(root.relativize(f).toString().replace(File.separatorChar, '/'), f));
+        }
+    }
+
+    /**
+     * Rewrite the app jar with the changed entries replaced, added or removed; all other entries are copied
+     * in order, so the manifest with its Class-Path stays first. A deleted name also removes entries below it.
+     */
+    static void patchJar(Path jar, Map<String, Path> changed) throws IOException {
+        Path patched = jar.resolveSibling(jar.getFileName() + ".tmp");
+        try (var in = new java.util.zip.ZipFile(jar.toFile());
+             var out = new java.util.zip.ZipOutputStream(Files.newOutputStream(patched))) {
+            // Application classes sit at the root of an extracted or plain jar, under BOOT-INF/classes/ in a fat one
+            String prefix = in.getEntry("BOOT-INF/classes/") != null ? "BOOT-INF/classes/" : "";
+            for (var entry : Collections.list(in.entries())) {
+                String name = entry.getName();
+                if (name.startsWith(prefix) && changed.keySet().stream().anyMatch(c ->
+                        name.equals(prefix + c) || name.startsWith(prefix + c + "/"))) {
+                    continue;
+                }
+                var copy = new java.util.zip.ZipEntry(name);
+                copy.setLastModifiedTime(entry.getLastModifiedTime());
+                out.putNextEntry(copy);
+                try (var data = in.getInputStream(entry)) {
+                    data.transferTo(out);
+                }
+                out.closeEntry();
+            }
+            for (var change : changed.entrySet()) {
+                Path file = change.getValue();
+                if (file == null || !Files.isRegularFile(file)) {
+                    continue;
+                }
+                var entry = new java.util.zip.ZipEntry(prefix + change.getKey());
+                entry.setLastModifiedTime(Files.getLastModifiedTime(file));
+                out.putNextEntry(entry);
+                Files.copy(file, out);
+                out.closeEntry();
+            }
+        }
+        Files.move(patched, jar, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // -----------------------------------------------------------------------
+    // hot swap – redefine changed classes in the running JVM instead of restarting it
+    // -----------------------------------------------------------------------
+    static final String HOTSWAP_AGENT = """
+            package boot2vm;
+
+            import java.io.*;
+            import java.lang.instrument.*;
+            import java.net.StandardProtocolFamily;
+            import java.net.UnixDomainSocketAddress;
+            import java.nio.channels.Channels;
+            import java.nio.channels.ServerSocketChannel;
+            import java.nio.file.Files;
+            import java.nio.file.Path;
+            import java.nio.file.attribute.PosixFilePermissions;
+            import java.security.ProtectionDomain;
+            import java.util.*;
+            import java.util.concurrent.ConcurrentHashMap;
+
+            /** Receives class files on a Unix socket and redefines them; loaded by the systemd unit with -javaagent. */
+            public class HotswapAgent {
+
+                /** Redefined classes not loaded yet; the jar the JVM has open still holds their old bytecode. */
+                static final Map<String, byte[]> pending = new ConcurrentHashMap<>();
+
+                public static void premain(String args, Instrumentation inst) {
+                    inst.addTransformer(new ClassFileTransformer() {
+                        @Override
+                        public byte[] transform(ClassLoader loader, String name, Class<?> redefined,
+                                ProtectionDomain domain, byte[] bytes) {
+                            return redefined == null && name != null ? pending.get(name) : null;
+                        }
+                    });
+                    var thread = new Thread(() -> serve(inst, Path.of(args)), "boot2vm-hotswap");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+
+                // Request: class count, then (internal name, length, bytes) per class. Reply: "OK n" or the error
+                // Anyone who can connect can run code in the JVM, so the socket is in a directory only the app user
+                // can enter (SSH forwards to it as that user) and is not accessible to others itself either
+                static void serve(Instrumentation inst, Path socket) {
+                    try (var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+                        Files.createDirectories(socket.getParent());
+                        Files.setPosixFilePermissions(socket.getParent(), PosixFilePermissions.fromString("rwx------"));
+                        Files.deleteIfExists(socket);
+                        server.bind(UnixDomainSocketAddress.of(socket));
+                        Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+                        while (true) {
+                            try (var channel = server.accept();
+                                 var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+                                 var out = new DataOutputStream(Channels.newOutputStream(channel))) {
+                                var classes = new HashMap<String, byte[]>();
+                                for (int n = in.readInt(); n > 0; n--) {
+                                    String name = in.readUTF();
+                                    classes.put(name, in.readNBytes(in.readInt()));
+                                }
+                                out.writeUTF(redefine(inst, classes));
+                            } catch (EOFException e) {
+                                // a connection check without a request
+                            } catch (IOException e) {
+                                System.err.println("boot2vm hotswap: " + e);
+                            }
+                        }
+                    } catch (IOException e) {
+                        System.err.println("boot2vm hotswap agent not listening on " + socket + ": " + e);
+                    }
+                }
+
+                static String redefine(Instrumentation inst, Map<String, byte[]> classes) {
+                    var definitions = new ArrayList<ClassDefinition>();
+                    for (Class<?> loaded : inst.getAllLoadedClasses()) {
+                        byte[] bytes = classes.get(loaded.getName().replace('.', '/'));
+                        if (bytes != null && inst.isModifiableClass(loaded)) {
+                            definitions.add(new ClassDefinition(loaded, bytes));
+                        }
+                    }
+                    try {
+                        // All or nothing: a schema change in any class leaves every class unchanged
+                        inst.redefineClasses(definitions.toArray(ClassDefinition[]::new));
+                    } catch (Exception | LinkageError e) {
+                        return e.toString();
+                    }
+                    pending.putAll(classes);
+                    return "OK " + definitions.size();
+                }
+            }
+            """;
+
+    /** Compile the agent with the local JDK and package it with the manifest the JVM needs to load it. */
+    static Path buildHotswapAgent() throws IOException {
+        Path dir = Files.createTempDirectory("boot2vm-hotswap");
+        Path source = dir.resolve("boot2vm/HotswapAgent.java");
+        Files.createDirectories(source.getParent());
+        Files.writeString(source, HOTSWAP_AGENT);
+        var compiler = javax.tools.ToolProvider.getSystemJavaCompiler();
+        if (compiler == null || compiler.run(null, null, null, "--release", "17", "-d", dir.toString(), source.toString()) != 0) {
+            throw new IOException("could not compile the hotswap agent (is JBang running on a JDK?)");
+        }
+        var manifest = new java.util.jar.Manifest();
+        manifest.getMainAttributes().put(java.util.jar.Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue("Premain-Class", "boot2vm.HotswapAgent");
+        manifest.getMainAttributes().putValue("Can-Redefine-Classes", "true");
+        Path jar = dir.resolve("hotswap-agent.jar");
+        try (var out = new java.util.jar.JarOutputStream(Files.newOutputStream(jar), manifest);
+             var classes = Files.list(dir.resolve("boot2vm"))) {
+            for (Path file : classes.filter(f -> f.toString().endsWith(".class")).toList()) {
+                out.putNextEntry(new java.util.zip.ZipEntry("boot2vm/" + file.getFileName()));
+                Files.copy(file, out);
+                out.closeEntry();
+            }
+        }
+        return jar;
+    }
+
+    /**
+     * Redefine the classes whose bytecode changed since the last deploy in the running JVM, then sync the
+     * release and point the running slot at it without restarting, so the next start runs the same code.
+     * The build is compared with the index stored in the release the unit runs, so another machine's deploy or a
+     * rollback in between is noticed.
+     * Returns false when a normal deploy is needed: first deploy, added, removed or non-class files, changed
+     * dependencies, or a change the JVM cannot redefine (new fields or methods, changed signatures).
+     */
+    @SuppressWarnings("try") // the turn is only held
+    static boolean hotswapClasses(String syncSource) throws Exception {
+        // The running slot must not change while its classes are redefined and its link is updated
+        try (var turn = awaitDeployTurn(null)) {
+            String slot = blueGreen ? activeSlot() : null;
+            String link = blueGreen ? "app-" + slot : "app";
+            var previous = new Properties();
+            previous.load(new StringReader(sshOutput(user, "cat ~/" + link + "/" + HOTSWAP_INDEX + " 2>/dev/null || true")));
+            if (previous.isEmpty()) {
+                return false;
+            }
+            var current = hotswapIndex(syncSource);
+            if (!previous.stringPropertyNames().equals(current.stringPropertyNames())) {
+                return false;
+            }
+            var changed = new ArrayList<String>();
+            for (String key : current.stringPropertyNames()) {
+                if (!current.getProperty(key).equals(previous.getProperty(key))) {
+                    if (!key.startsWith("jar:") || !key.endsWith(".class")) return false;
+                    changed.add(key.substring(4));
+                }
+            }
+            if (changed.isEmpty()) {
+                return false;
+            }
+
+            String reply;
+            int local = freePort();
+            Process tunnel = null;
+            try (var jar = new java.util.zip.ZipFile(Path.of(syncSource, user + ".jar").toFile())) {
+                tunnel = openSocketTunnel(local, "/home/" + user + "/.hotswap/" + (blueGreen ? slot : "app") + ".sock");
+                try (var socket = new java.net.Socket("localhost", local);
+                     var out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                     var in = new DataInputStream(socket.getInputStream())) {
+                    out.writeInt(changed.size());
+                    for (String name : changed) {
+                        byte[] bytes = jar.getInputStream(jar.getEntry(name)).readAllBytes();
+                        out.writeUTF(name.replaceFirst("^BOOT-INF/classes/", "").replaceFirst("\\.class$", ""));
+                        out.writeInt(bytes.length);
+                        out.write(bytes);
+                    }
+                    out.flush();
+                    reply = in.readUTF();
+                }
+            } catch (IOException e) {
+                reply = "agent not reachable (" + e.getMessage() + ")";
+            } finally {
+                if (tunnel != null) tunnel.destroy();
+            }
+            if (!reply.startsWith("OK")) {
+                System.out.println("Hot swap not possible: " + reply + " — deploying normally");
+                return false;
+            }
+
+            String unit = blueGreen ? user + "-" + slot : user;
+            System.out.println("Hot-swapped " + changed.size() + " changed class(es) into " + unit + ", syncing release ...");
+            String releaseId = syncRelease(syncSource);
+            releases("activate", link, releaseId);
+            pruneReleases();
+            System.out.println("Deployed without restart! Release: " + releaseId);
+            return true;
+        }
+    }
+
+    /** CRC per class and resource in the app jar, size per dependency jar. */
+    static Properties hotswapIndex(String syncSource) throws IOException {
+        var index = new Properties();
+        try (var jar = new java.util.zip.ZipFile(Path.of(syncSource, user + ".jar").toFile())) {
+            for (var entry : Collections.list(jar.entries())) {
+                if (!entry.isDirectory()) index.setProperty("jar:" + entry.getName(), String.valueOf(entry.getCrc()));
+            }
+        }
+        Path lib = Path.of(syncSource, "lib");
+        if (Files.isDirectory(lib)) {
+            try (var files = Files.list(lib)) {
+                for (Path file : files.toList()) {
+                    index.setProperty("lib:" + file.getFileName(), String.valueOf(Files.size(file)));
+                }
+            }
+        }
+        return index;
+    }
+
+    static final String HOTSWAP_INDEX = "boot2vm-hotswap.properties";
+
+    /** Add the index of the build to the sync source, so each release on the server records what it contains. */
+    static void saveHotswapIndex(String syncSource) throws IOException {
+        try (var writer = Files.newBufferedWriter(Path.of(syncSource, HOTSWAP_INDEX))) {
+            hotswapIndex(syncSource).store(writer, "classes of this release, for HOTSWAP=yes");
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    // static assets – served by Caddy from the release with PROXY_PROFILE=static
+    // -----------------------------------------------------------------------
+    static final List<String> STATIC_PREFIXES = List.of("META-INF/VAADIN/webapp/", "static/", "public/");
+    static final Set<String> COMPRESSIBLE = Set.of("js", "mjs", "css", "html", "svg", "json", "map", "txt", "xml",
+            "ttf", "otf", "ico", "wasm");
+
+    /**
+     * Copy the project's own static/ and public/ resources and Vaadin's production bundle from the app jar into
+     * target, with gzip (and zstd, if installed) variants for Caddy's precompressed file server. Only entries
+     * that are in the project's build output are taken, never resources of dependencies. Entry times are kept so
+     * unchanged assets are hard-linked to the previous release instead of transferred.
+     */
+    static void extractStaticAssets(Path jar, Path target) throws Exception {
+        var own = new HashMap<String, Path>();
+        for (Path dir : classOutputDirs()) {
+            for (String prefix : STATIC_PREFIXES) {
+                if (Files.isDirectory(dir.resolve(prefix))) {
+                    collectFiles(dir, dir.resolve(prefix), own);
+                }
+            }
+        }
+        int count = 0;
+        try (var zip = new java.util.zip.ZipFile(jar.toFile())) {
+            for (var entry : Collections.list(zip.entries())) {
+                String name = entry.getName().replaceFirst("^BOOT-INF/classes/", "");
+                String prefix = STATIC_PREFIXES.stream().filter(name::startsWith).findFirst().orElse(null);
+                // Vaadin generates its index.html per request, so it must stay with the app
+                if (entry.isDirectory() || prefix == null || !own.containsKey(name)
+                        || name.equals("META-INF/VAADIN/webapp/index.html")) {
+                    continue;
+                }
+                Path file = target.resolve(name.substring(prefix.length())).normalize();
+                if (!file.startsWith(target)) {
+                    continue;
+                }
+                Files.createDirectories(file.getParent());
+                try (var in = zip.getInputStream(entry)) {
+                    Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+                Files.setLastModifiedTime(file, entry.getLastModifiedTime());
+                count++;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        boolean zstd;
+        try {
+            zstd = new ProcessBuilder("zstd", "--version").start().waitFor() == 0;
+        } catch (IOException e) {
+            zstd = false;
+        }
+        var files = new ArrayList<Path>();
+        try (var walk = Files.walk(target)) {
+            walk.filter(Files::isRegularFile).filter(f -> {
+                String name = f.getFileName().toString();
+                return COMPRESSIBLE.contains(name.substring(name.lastIndexOf('.') + 1));
+            }).forEach(files::add);
+        }
+        for (Path file : files) {
+            var modified = Files.getLastModifiedTime(file);
+            Path gz = file.resolveSibling(file.getFileName() + ".gz");
+            if (!Files.exists(gz)) {
+                try (var out = new java.util.zip.GZIPOutputStream(Files.newOutputStream(gz)) {
+                    { def.setLevel(java.util.zip.Deflater.BEST_COMPRESSION); }
+                }) {
+                    Files.copy(file, out);
+                }
+                Files.setLastModifiedTime(gz, modified);
+            }
+            Path zst = file.resolveSibling(file.getFileName() + ".zst");
+            if (zstd && !Files.exists(zst)) {
+                new ProcessBuilder("zstd", "-q", "-19", file.toString(), "-o", zst.toString()).inheritIO().start().waitFor();
+                Files.setLastModifiedTime(zst, modified);
+            }
+        }
+        System.out.println("Extracted " + count + " static assets for Caddy (" + files.size() + " precompressed"
+                + (zstd ? " with gzip and zstd)" : " with gzip)"));
+    }
+
+    // -----------------------------------------------------------------------
+    // deployBlueGreen – zero-downtime blue/green deploy
+    // -----------------------------------------------------------------------
+    static void deployBlueGreen(String syncSource) throws Exception {
+        // Sync build artifacts to a new release; the transfer does not need the deploy turn
+        System.out.println("Syncing to server ...");
+        String releaseId = syncRelease(syncSource);
+        try (var turn = awaitDeployTurn(releaseId)) {
+            if (turn == null) {
+                return;
+            }
+            // Read the current active slot (once it is our turn) and point the inactive slot at the release
+            System.out.println("Reading active slot ...");
+            String active = activeSlot();
+            String inactive = "blue".equals(active) ? "green" : "blue";
+            System.out.println("Active slot: " + active + ", deploying to: " + inactive);
+            releases("activate", "app-" + inactive, releaseId);
+            ssh(user, "rm -f /home/" + user + "/staged");
+
+            swapToInactive("full");
+            pruneReleases();
+
+            System.out.println("Deployed successfully! Active slot is now: " + inactive + ", release: " + releaseId);
+        }
+    }
+
+    /**
+     * Upload and run the swap (or graceful drain) script: health-check the inactive slot and switch traffic to it.
+     * Mode "full" (re)starts the inactive slot first, "start" only starts and warms it, "promote" reuses it if running.
+     */
+    static void runBlueGreenSwap(String mode) throws Exception {
+        String mgmtPortBlue = (managementPort != null && !managementPort.isBlank()) ? managementPort : "0";
+        String warmup = " '" + warmupPaths + "' " + warmupRequests + " " + (crac ? "yes" : "no") + " " + proxyProfile
+                + " '" + proxyHealthPath + "'";
+        if (gracefulDrain && !"start".equals(mode)) {
+            System.out.println("Running graceful blue-green drain ...");
+            String script = uploadScript("bg-graceful", BLUE_GREEN_GRACEFUL_SCRIPT);
+            sshAsRootInteractive("bash " + script + " " + user + " " + proxy + " " + (https ? "yes" : "no") + " '" + domain + "'"
+                    + " " + slotCookie + " " + drainTimeout + " " + notifyPath + " " + activeUsersPath
+                    + " " + mgmtPortBlue + " " + mode + warmup + " '" + sessionHandoffPath + "' " + startCpuWeight());
         } else {
-            // Spring Boot: extract fat jar for efficient rsync (lib/ changes rarely)
-            Path jarDir = (mavenw || pom) ? Path.of("target") : Path.of("build", "libs");
-            Path jar = findJar(jarDir);
-            System.out.println("Found jar: " + jar);
+            System.out.println("start".equals(mode) ? "Starting inactive slot ..." : "Running blue-green swap ...");
+            String script = uploadScript("bg-swap", BLUE_GREEN_SWAP_SCRIPT);
+            String canary = canarySteps.isEmpty() ? "" : canarySteps + ":" + canaryStepSeconds + ":"
+                    + canaryMaxErrorRate + ":" + canaryMaxP95Increase;
+            String watch = watchSeconds > 0 ? watchSeconds + ":" + canaryMaxErrorRate + ":" + canaryMaxP95Increase : "";
+            sshAsRoot("bash " + script + " " + user + " " + proxy + " " + (https ? "yes" : "no") + " '" + domain + "'"
+                    + " " + mgmtPortBlue + " " + mode + warmup + " '" + canary + "' '" + watch + "' " + startCpuWeight());
+        }
+    }
+
+    /**
+     * Switch traffic to the inactive slot. With PERF_GATE_SECONDS set, the slot is started (unless already
+     * running for a promote) and load-tested against the active one first, and the swap only happens if it passes.
+     */
+    static void swapToInactive(String mode) throws Exception {
+        if (perfGateSeconds > 0) {
+            String active = activeSlot();
+            String inactive = "blue".equals(active) ? "green" : "blue";
+            boolean running = "promote".equals(mode) && "active".equals(
+                    sshOutputAsRoot("systemctl is-active " + user + "-" + inactive + " || true").trim());
+            if (!running) {
+                runBlueGreenSwap("start");
+            }
+            perfGate(active, inactive);
+            mode = "promote";
+        }
+        runBlueGreenSwap(mode);
+    }
+
+    /** Copy a script to the server as the admin user, for running as root; returns the remote path. */
+    static String uploadScript(String name, String content) throws Exception {
+        return uploadScript(adminUser, name, content);
+    }
+
+    /**
+     * Copy a script to /tmp/boot2vm-<name>-<app user>.sh on the server as the given user and return the path.
+     * Apps sharing the host get their own copies, and the copy is renamed into place, so a script of an earlier
+     * deploy that bash is still reading line by line keeps its own file.
+     */
+    static String uploadScript(String asUser, String name, String content) throws Exception {
+        String remoteScript = "/tmp/boot2vm-" + name + "-" + user + ".sh";
+        String upload = remoteScript + "." + UUID.randomUUID() + ".tmp";
+        Path tempScript = Files.createTempFile(name, ".sh");
+        Files.writeString(tempScript, content);
+        scp(tempScript.toString(), asUser + "@" + host + ":" + upload);
+        Files.delete(tempScript);
+        ssh(asUser, "mv -f " + upload + " " + remoteScript);
+        return remoteScript;
+    }
+
+    // -----------------------------------------------------------------------
+    // perf gate – same synthetic load against both slots before switching traffic
+    // -----------------------------------------------------------------------
+
+    /**
+     * Closed-loop load against one slot, run on the server so neither the workstation's network nor an SSH tunnel
+     * adds to the latencies: CLIENTS loops request the comma-separated PATHS in turn on localhost:PORT for SECONDS,
+     * each curl call reusing its connection for a batch of requests. Prints "STATUS SECONDS" per request (status 000:
+     * no response), then "elapsed SECONDS".
+     */
+    static final String PERF_GATE_SCRIPT = """
+            #!/bin/bash
+            set -euo pipefail
+            PORT="$1"
+            CLIENTS="$2"
+            DURATION="$3"
+            IFS=, read -ra URL_PATHS <<< "$4"
+
+            # One output file per client, as concurrent writers would interleave partial lines on a shared pipe
+            OUT=$(mktemp -d)
+            trap 'rm -rf "$OUT"' EXIT
+            START=$(date +%s.%N)
+            END=$(( ${START%.*} + DURATION ))
+            client() {
+                local i="$1" args
+                while [ "$(date +%s)" -lt "$END" ]; do
+                    args=()
+                    for _ in 1 2 3 4 5 6 7 8 9 10; do
+                        args+=(-o /dev/null "http://localhost:$PORT${URL_PATHS[i % ${#URL_PATHS[@]}]}")
+                        i=$((i + 1))
+                    done
+                    curl -s --max-time 10 -w '%{http_code} %{time_total}\\n' "${args[@]}" || true
+                done > "$OUT/$1"
+            }
+            for c in $(seq 1 "$CLIENTS"); do
+                client "$c" &
+            done
+            wait
+            cat "$OUT"/*
+            awk -v start="$START" -v end="$(date +%s.%N)" 'BEGIN { printf "elapsed %.3f\\n", end - start }'
+            """;
+
+    static String perfGateScript;
+
+    static void perfGate(String active, String inactive) throws Exception {
+        // Uploaded as the app user, who runs it (scp keeps the temp file's 0600)
+        if (perfGateScript == null) {
+            perfGateScript = uploadScript(user, "perf-gate", PERF_GATE_SCRIPT);
+        }
+        String script = perfGateScript;
+        System.out.println("Performance gate: " + perfGateConcurrency + " concurrent clients on the server, "
+                + perfGateSeconds + "s per slot, paths " + perfGatePaths);
+        // Alternate the slots in two rounds so drift on the host affects both alike
+        var results = new HashMap<String, LoadResult>();
+        for (int round = 0; round < 2; round++) {
+            for (String slot : List.of(active, inactive)) {
+                results.merge(slot, slotLoad(script, slot), LoadResult::plus);
+            }
+        }
+        LoadResult old = results.get(active), candidate = results.get(inactive);
+        System.out.println("  " + active + " (active):   " + old);
+        System.out.println("  " + inactive + " (new):      " + candidate);
+
+        var failures = new ArrayList<String>();
+        if (candidate.percentile(99) > old.percentile(99) * (100 + perfGateMaxP99Increase) / 100) {
+            failures.add("p99 " + millis(candidate.percentile(99)) + " vs " + millis(old.percentile(99)));
+        }
+        if (candidate.throughput() < old.throughput() * (100 - perfGateMaxThroughputDrop) / 100) {
+            failures.add(String.format("throughput %.1f/s vs %.1f/s", candidate.throughput(), old.throughput()));
+        }
+        if (candidate.errorRate() > old.errorRate() + perfGateMaxErrorRate) {
+            failures.add(String.format("error rate %.1f%% vs %.1f%%", candidate.errorRate(), old.errorRate()));
+        }
+        if (!failures.isEmpty()) {
+            System.err.println("Performance gate failed: " + String.join(", ", failures)
+                    + " — stopping " + inactive + ", traffic stays on " + active);
+            sshAsRoot("systemctl stop " + user + "-" + inactive);
+            System.exit(1);
+        }
+        System.out.println("Performance gate passed");
+    }
+
+    /** One round of PERF_GATE_SCRIPT against a slot, run as the app user. */
+    static LoadResult slotLoad(String script, String slot) throws Exception {
+        String output = sshOutput(user, "bash " + script + " " + slotPort(slot) + " " + perfGateConcurrency + " "
+                + Math.max(1, perfGateSeconds / 2) + " '" + perfGatePaths.replace(" ", "") + "'");
+        var latencies = new ArrayList<Long>();
+        int errors = 0;
+        double seconds = perfGateSeconds / 2.0;
+        for (String line : output.lines().toList()) {
+            String[] fields = line.trim().split(" ");
+            if (fields.length != 2) {
+                continue;
+            }
+            if ("elapsed".equals(fields[0])) {
+                seconds = Double.parseDouble(fields[1]);
+            } else if (Integer.parseInt(fields[0]) == 0 || Integer.parseInt(fields[0]) >= 500) {
+                errors++;
+            } else {
+                latencies.add((long) (Double.parseDouble(fields[1]) * 1e9));
+            }
+        }
+        long[] sorted = latencies.stream().mapToLong(Long::longValue).sorted().toArray();
+        return new LoadResult(sorted, errors, seconds);
+    }
+
+    /** Latencies (nanoseconds) and outcome of a load run. */
+    record LoadResult(long[] latencies, int errors, double seconds) {
+
+        LoadResult plus(LoadResult other) {
+            long[] all = Arrays.copyOf(latencies, latencies.length + other.latencies.length);
+            System.arraycopy(other.latencies, 0, all, latencies.length, other.latencies.length);
+            Arrays.sort(all);
+            return new LoadResult(all, errors + other.errors, seconds + other.seconds);
+        }
+
+        double throughput() {
+            return latencies.length / seconds;
+        }
+
+        /** Failed requests in percent of all requests. */
+        double errorRate() {
+            int total = latencies.length + errors;
+            return total == 0 ? 0 : 100.0 * errors / total;
+        }
+
+        long percentile(double p) {
+            return latencies.length == 0 ? 0 : latencies[(int) Math.min(latencies.length - 1, Math.ceil(latencies.length * p / 100) - 1)];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests, %.1f/s, p50 %s, p99 %s, %d errors", latencies.length, throughput(),
+                    millis(percentile(50)), millis(percentile(99)), errors);
+        }
+    }
+
+    /** Forward local ports to app ports on the server over SSH; the caller destroys the returned process. */
+    static Process openTunnel(int... localRemotePairs) throws Exception {
+        var forwards = new ArrayList<String>();
+        for (int i = 0; i < localRemotePairs.length; i += 2) {
+            forwards.add(localRemotePairs[i] + ":localhost:" + localRemotePairs[i + 1]);
+        }
+        return openForwards(forwards, localRemotePairs[0]);
+    }
+
+    /** Forward a local port to a Unix socket on the server; the app user's SSH login connects to it. */
+    static Process openSocketTunnel(int localPort, String remoteSocket) throws Exception {
+        return openForwards(List.of(localPort + ":" + remoteSocket), localPort);
+    }
+
+    static Process openForwards(List<String> forwards, int firstLocalPort) throws Exception {
+        var cmd = new ArrayList<>(List.of("ssh", "-i", sshKey, "-o", "StrictHostKeyChecking=accept-new",
+                "-o", "ExitOnForwardFailure=yes", "-N"));
+        for (String forward : forwards) {
+            cmd.addAll(List.of("-L", forward));
+        }
+        cmd.add(user + "@" + host);
+        var tunnel = new ProcessBuilder(cmd).inheritIO().start();
+        for (int i = 0; i < 50; i++) {
+            try {
+                new java.net.Socket("localhost", firstLocalPort).close();
+                return tunnel;
+            } catch (IOException e) {
+                if (!tunnel.isAlive()) break;
+                Thread.sleep(200);
+            }
+        }
+        tunnel.destroy();
+        throw new IOException("could not open SSH tunnel to " + host);
+    }
+
+    static int freePort() throws IOException {
+        try (var socket = new java.net.ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static int slotPort(String slot) {
+        return "blue".equals(slot) ? appPort : appPort + 1;
+    }
+
+    static String millis(long nanos) {
+        return String.format("%.1fms", nanos / 1e6);
+    }
+
+    // -----------------------------------------------------------------------
+    // bench – open-loop load test against the domain or a single slot
+    // -----------------------------------------------------------------------
+    static void bench(String[] args) throws Exception {
+        String target = "/", slotArg = null, save = null, compare = null;
+        int rps = 50, seconds = 30, concurrency = 256;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--rps" -> rps = Integer.parseInt(args[++i]);
+                case "--duration" -> seconds = Integer.parseInt(args[++i].replaceAll("s$", ""));
+                case "--concurrency" -> concurrency = Integer.parseInt(args[++i]);
+                case "--slot" -> slotArg = args[++i];
+                case "--save" -> save = args[++i];
+                case "--compare" -> compare = args[++i];
+                default -> target = arg;
+            }
+        }
+
+        Process tunnel = null;
+        URI uri;
+        if (target.startsWith("http://") || target.startsWith("https://")) {
+            uri = URI.create(target);
+        } else if (slotArg != null) {
+            // Straight to the app port, past Caddy, so a slot can be measured while it gets no traffic
+            int local = freePort();
+            tunnel = openTunnel(local, benchPort(slotArg));
+            uri = URI.create("http://localhost:" + local + target);
+        } else {
+            uri = URI.create((https ? "https://" : "http://") + domain.split(" ")[0] + target);
+        }
+        try {
+            System.out.println("Benchmarking " + uri + (slotArg != null ? " (" + slotArg + " slot)" : "")
+                    + ": " + rps + " req/s for " + seconds + "s, at most " + concurrency + " in flight");
+            var result = openLoop(uri, rps, seconds, concurrency);
+            result.print(System.out);
+
+            Path dir = Path.of("boot2vm-bench");
+            if (compare != null) {
+                var baseline = BenchResult.load(dir.resolve(compare + ".properties"));
+                System.out.println();
+                System.out.println("Compared to '" + compare + "' (" + baseline.target + "):");
+                for (double p : BenchResult.PERCENTILES) {
+                    long before = baseline.histogram.percentile(p), now = result.histogram.percentile(p);
+                    System.out.printf("  %-6s %9s -> %9s  %+6.1f%%%n", BenchResult.label(p),
+                            micros(before), micros(now), before == 0 ? 0.0 : (now - before) * 100.0 / before);
+                }
+                System.out.printf("  %-6s %8.1f/s -> %7.1f/s%n", "rate", baseline.throughput(), result.throughput());
+                System.out.printf("  %-6s %9d -> %9d%n", "errors", baseline.errors, result.errors);
+            }
+            if (save != null) {
+                Files.createDirectories(dir);
+                Path file = dir.resolve(save + ".properties");
+                result.save(file);
+                System.out.println("Saved to " + file);
+            }
+        } finally {
+            if (tunnel != null) tunnel.destroy();
+        }
+    }
+
+    static int benchPort(String slotArg) throws Exception {
+        if (!blueGreen) return appPort;
+        String unit = resolveUnit(slotArg);
+        return slotPort(unit.substring(unit.lastIndexOf('-') + 1));
+    }
+
+    /**
+     * Open loop: requests are due at a fixed rate whether or not earlier ones have completed, and latency
+     * is measured from the time a request was due. A stalled server thus shows up in the percentiles
+     * instead of silently lowering the request rate (coordinated omission).
+     */
+    static BenchResult openLoop(URI uri, int rps, int seconds, int concurrency) throws Exception {
+        var executor = requestExecutor();
+        var client = HttpClient.newBuilder().followRedirects(HttpClient.Redirect.NORMAL).build();
+        var histogram = new Histogram();
+        var errors = new java.util.concurrent.atomic.AtomicInteger();
+        var slots = new java.util.concurrent.Semaphore(concurrency);
+        long interval = 1_000_000_000L / rps, total = (long) rps * seconds, start = System.nanoTime();
+        for (long i = 0; i < total; i++) {
+            long due = start + i * interval;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+            executor.execute(() -> {
+                try {
+                    slots.acquire();
+                    try {
+                        var request = HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(30)).build();
+                        int status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+                        if (status >= 500) {
+                            errors.incrementAndGet();
+                        } else {
+                            histogram.record((System.nanoTime() - due) / 1000);
+                        }
+                    } finally {
+                        slots.release();
+                    }
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, java.util.concurrent.TimeUnit.MINUTES);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        return new BenchResult(uri.toString(), rps, histogram, errors.get(), elapsed);
+    }
+
+    /** Virtual threads when the JDK running the script has them (21+), a thread per request otherwise. */
+    static java.util.concurrent.ExecutorService requestExecutor() {
+        try {
+            return (java.util.concurrent.ExecutorService) java.util.concurrent.Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return java.util.concurrent.Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Latency histogram in microseconds with HDR-style log-linear buckets: exact below 128µs, above that
+     * 64 buckets per power of two, so every recorded value is kept within 1.6% in constant memory.
+     */
+    static final class Histogram {
+        final long[] counts = new long[64 * 48];
+        long total, max;
+
+        synchronized void record(long micros) {
+            micros = Math.max(0, micros);
+            counts[index(micros)]++;
+            total++;
+            max = Math.max(max, micros);
+        }
+
+        static int index(long micros) {
+            int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(micros) - 6);
+            return shift == 0 ? (int) micros : shift * 64 + (int) (micros >> shift);
+        }
+
+        /** Highest value that falls into the bucket, so percentiles never understate latency. */
+        static long value(int index) {
+            if (index < 128) return index;
+            int shift = index / 64 - 1;
+            return ((long) (index - shift * 64) << shift) + (1L << shift) - 1;
+        }
+
+        synchronized long percentile(double p) {
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(total * p / 100), seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(value(i), max);
+            }
+            return max;
+        }
+    }
+
+    record BenchResult(String target, int rps, Histogram histogram, int errors, double seconds) {
+
+        static final double[] PERCENTILES = {50, 90, 99, 99.9, 100};
+
+        double throughput() {
+            return histogram.total / seconds;
+        }
+
+        static String label(double p) {
+            return p == 100 ? "max" : "p" + (p == Math.rint(p) ? String.valueOf((int) p) : String.valueOf(p));
+        }
+
+        void print(PrintStream out) {
+            out.printf("  %d requests in %.1fs (%.1f/s), %d errors%n", histogram.total, seconds, throughput(), errors);
+            for (double p : PERCENTILES) {
+                out.printf("  %-6s %9s%n", label(p), micros(histogram.percentile(p)));
+            }
+        }
+
+        /** Non-empty buckets are stored as bucket.INDEX=COUNT, so the full distribution can be compared later. */
+        void save(Path file) throws IOException {
+            var props = new Properties();
+            props.setProperty("target", target);
+            props.setProperty("rps", String.valueOf(rps));
+            props.setProperty("errors", String.valueOf(errors));
+            props.setProperty("seconds", String.valueOf(seconds));
+            props.setProperty("max", String.valueOf(histogram.max));
+            props.setProperty("time", LocalDateTime.now().toString());
+            for (int i = 0; i < histogram.counts.length; i++) {
+                if (histogram.counts[i] > 0) props.setProperty("bucket." + i, String.valueOf(histogram.counts[i]));
+            }
+            try (var writer = Files.newBufferedWriter(file)) {
+                props.store(writer, "boot2vm bench");
+            }
+        }
+
+        static BenchResult load(Path file) throws IOException {
+            if (!Files.exists(file)) {
+                System.err.println("No saved benchmark " + file);
+                System.exit(1);
+            }
+            var props = new Properties();
+            try (var reader = Files.newBufferedReader(file)) {
+                props.load(reader);
+            }
+            var histogram = new Histogram();
+            for (String key : props.stringPropertyNames()) {
+                if (key.startsWith("bucket.")) {
+                    long count = Long.parseLong(props.getProperty(key));
+                    histogram.counts[Integer.parseInt(key.substring(7))] = count;
+                    histogram.total += count;
+                }
+            }
+            histogram.max = Long.parseLong(props.getProperty("max", "0"));
+            return new BenchResult(props.getProperty("target"), Integer.parseInt(props.getProperty("rps", "0")), histogram,
+                    Integer.parseInt(props.getProperty("errors", "0")), Double.parseDouble(props.getProperty("seconds", "1")));
+        }
+    }
+
+    static String micros(long micros) {
+        return String.format("%.2fms", micros / 1000.0);
+    }
+
+    // -----------------------------------------------------------------------
+    // jlink runtime – trimmed Java runtime built from the app's module requirements
+    // -----------------------------------------------------------------------
+
+    /**
+     * Build (or reuse) the jlink runtime for the app in syncSource and rsync it to ~/runtimes/<key> on the server,
+     * where releases link to it. Returns the key; a runtime is never changed once synced.
+     */
+    static String syncRuntime(String syncSource) throws Exception {
+        Path jdk = Path.of(!jlinkJdk.isBlank() ? expandHome(jlinkJdk)
+                : System.getenv("JAVA_HOME") != null ? System.getenv("JAVA_HOME") : System.getProperty("java.home"));
+        if (jlinkModulePath.isBlank()) {
+            requireServerPlatform("RUNTIME=jlink builds a runtime for the local platform",
+                    "set JLINK_MODULE_PATH to the jmods directory of a Linux JDK for the server's architecture");
+        }
+        String release = Files.readString(jdk.resolve("release"));
+        var version = java.util.regex.Pattern.compile("JAVA_VERSION=\"([0-9]+)").matcher(release);
+        String feature = version.find() ? version.group(1) : String.valueOf(Runtime.version().feature());
+
+        var jars = new ArrayList<String>();
+        try (var files = Files.walk(Path.of(syncSource))) {
+            files.filter(f -> f.toString().endsWith(".jar")).map(Path::toString).sorted().forEach(jars::add);
+        }
+        // jdeps is slow on large class paths, so its result is cached by the content of all jars
+        Path cacheRoot = Path.of(System.getProperty("user.home"), ".cache", "boot2vm");
+        var digest = java.security.MessageDigest.getInstance("SHA-256");
+        digest.update(release.getBytes());
+        for (String jar : jars) {
+            digest.update(Files.readAllBytes(Path.of(jar)));
+        }
+        Path modulesFile = cacheRoot.resolve("jdeps").resolve(HexFormat.of().formatHex(digest.digest()));
+        if (!Files.exists(modulesFile)) {
+            System.out.println("Computing required modules with jdeps ...");
+            var cmd = new ArrayList<>(List.of(jdk.resolve("bin/jdeps").toString(), "--print-module-deps",
+                    "--ignore-missing-deps", "--multi-release", feature,
+                    "--class-path", String.join(File.pathSeparator, jars)));
+            cmd.addAll(jars);
+            Files.createDirectories(modulesFile.getParent());
+            Files.writeString(modulesFile, runForOutput(cmd.toArray(String[]::new)).trim());
+        }
+
+        var available = new HashSet<String>();
+        for (String line : runForOutput(jdk.resolve("bin/java").toString(), "--list-modules").lines().toList()) {
+            available.add(line.replaceFirst("@.*", "").trim());
+        }
+        var modules = new TreeSet<String>();
+        for (String module : (Files.readString(modulesFile) + "," + jlinkExtraModules).split(",")) {
+            if (available.contains(module.trim())) modules.add(module.trim());
+        }
+
+        // Only rebuilt when the module set or the JDK changes
+        String key = HexFormat.of().formatHex(java.security.MessageDigest.getInstance("SHA-256")
+                .digest((release + modules + jlinkModulePath).getBytes()));
+        Path image = cacheRoot.resolve("runtimes").resolve(key.substring(0, 16));
+        if (!Files.exists(image)) {
+            System.out.println("Building jlink runtime (Java " + feature + "): " + String.join(",", modules));
+            Path temp = image.resolveSibling(image.getFileName() + ".tmp");
+            if (Files.exists(temp)) {
+                deleteRecursively(temp);
+            }
+            var cmd = new ArrayList<>(List.of(jdk.resolve("bin/jlink").toString(),
+                    "--add-modules", String.join(",", modules),
+                    "--strip-debug", "--no-man-pages", "--no-header-files",
+                    "--output", temp.toString()));
+            if (!jlinkModulePath.isBlank()) {
+                cmd.addAll(List.of("--module-path", expandHome(jlinkModulePath)));
+            }
+            run(cmd.toArray(String[]::new));
+            Files.move(temp, image);
+        } else {
+            System.out.println("Reusing jlink runtime " + image.getFileName() + " (modules and JDK unchanged)");
+        }
+
+        String runtimeKey = image.getFileName().toString();
+        var cmd = new ArrayList<>(List.of("rsync", "-a", "--delete", "--stats",
+                "-e", "ssh -i " + sshKey + " -o StrictHostKeyChecking=accept-new"));
+        cmd.addAll(rsyncQos());
+        cmd.add(image + "/");
+        cmd.add(user + "@" + host + ":/home/" + user + "/runtimes/" + runtimeKey + "/");
+        run(cmd.toArray(String[]::new));
+        return runtimeKey;
+    }
+
+    static String serverArchitecture;
+
+    /** The server's CPU architecture by dpkg's name for it (amd64, arm64, armhf). */
+    static String serverArch() throws Exception {
+        if (serverArchitecture == null) {
+            serverArchitecture = sshOutput(user, "dpkg --print-architecture").trim();
+        }
+        return serverArchitecture;
+    }
+
+    /**
+     * Exit unless this machine is Linux on the server's CPU architecture, for artifacts built for the local platform.
+     */
+    static void requireServerPlatform(String what, String hint) throws Exception {
+        String serverArch = serverArch();
+        String localArch = switch (System.getProperty("os.arch")) {
+            case "amd64", "x86_64" -> "amd64";
+            case "aarch64", "arm64" -> "arm64";
+            case "arm" -> "armhf";
+            default -> System.getProperty("os.arch");
+        };
+        if (!System.getProperty("os.name").startsWith("Linux") || !localArch.equals(serverArch)) {
+            System.err.println(what + "; this is " + System.getProperty("os.name") + "/" + localArch
+                    + ", the server is Linux/" + serverArch + ": " + hint);
+            System.exit(1);
+        }
+    }
+
+    // -----------------------------------------------------------------------
+    // deploy QoS – keep deploy work from competing with live traffic on the server
+    // -----------------------------------------------------------------------
+
+    /** rsync options: DEPLOY_BWLIMIT (KiB/s) for the transfer, and a low-priority receiver with DEPLOY_QOS=yes. */
+    static List<String> rsyncQos() {
+        var options = new ArrayList<String>();
+        if (deployBwlimit > 0) {
+            options.add("--bwlimit=" + deployBwlimit);
+        }
+        if (deployQos) {
+            options.add("--rsync-path=" + lowPriority() + "rsync");
+        }
+        return options;
+    }
+
+    /** Command prefix for deploy work run as the app user: lower CPU (nice) and I/O (ionice) priority. */
+    static String lowPriority() {
+        if (!deployQos) {
+            return "";
+        }
+        return "nice -n " + deployNice + " ionice -c " + ("idle".equals(deployIonice) ? "3" : "2 -n 7") + " ";
+    }
+
+    /** Command prefix for deploy work run as root: additionally a transient scope with reduced CPU and I/O weight. */
+    static String lowPriorityScope() {
+        if (!deployQos) {
+            return "";
+        }
+        return "systemd-run --scope --quiet -p CPUWeight=" + deployWeight + " -p IOWeight=" + deployWeight
+                + " " + lowPriority();
+    }
+
+    /** CPUWeight for a starting blue-green slot until it is healthy (systemd's default is 100). */
+    static String startCpuWeight() {
+        return deployQos ? String.valueOf(deployWeight) : "";
+    }
+
+    // -----------------------------------------------------------------------
+    // deploy queue – one rollout at a time per app, the newest waiting release goes next
+    // -----------------------------------------------------------------------
+
+    /** Seconds without a heartbeat after which the server gives a deploy's turn up. */
+    static final int DEPLOY_LEASE_SECONDS = 60;
+
+    /**
+     * Waits for the app's deploy turn (args: release id, lease seconds). Prints ACQUIRED and holds the turn
+     * until stdin closes or no heartbeat line arrives within the lease, or prints SUPERSEDED <release> when
+     * a newer release is waiting too or already went out. The turn is a flock, so it dies with its holder.
+     */
+    static final String DEPLOY_QUEUE_SCRIPT = """
+            #!/bin/bash
+            set -euo pipefail
+            RELEASE="$1"                     # release id, or - to only wait for the turn (promote, rollback, env)
+            LEASE="$2"
+            QUEUE="$HOME/deploy-queue"
+            mkdir -p "$QUEUE"
+
+            # Releases are ordered by their arrival here, numbered in seq: their ids carry the clock of the
+            # machine they were deployed from. superseded_by SEQ prints a release queued after SEQ that goes out instead.
+            superseded_by() {
+                local LAST_SEQ="" LAST="" NEXT_SEQ="" NEXT="" NEXT_PID=""
+                read -r LAST_SEQ LAST 2>/dev/null < "$QUEUE/last" || true
+                read -r NEXT_SEQ NEXT NEXT_PID 2>/dev/null < "$QUEUE/next" || true
+                # Files written before the numbering have no number
+                [[ "$LAST_SEQ" =~ ^[0-9]+$ ]] || LAST_SEQ=0
+                [[ "$NEXT_SEQ" =~ ^[0-9]+$ ]] || NEXT_SEQ=0
+                if [ "$LAST_SEQ" -gt "$1" ]; then
+                    echo "$LAST"
+                elif [ "$NEXT_SEQ" -gt "$1" ] && kill -0 "${NEXT_PID:-0}" 2>/dev/null; then
+                    echo "$NEXT"
+                fi
+            }
+
+            # Queue up: the newest waiting release (whose waiter is still alive) takes the next turn
+            SEQ=0
+            if [ "$RELEASE" != "-" ]; then
+                SEQ=$(
+                    {
+                        flock 8
+                        SEQ=$(( $(cat "$QUEUE/seq" 2>/dev/null || echo 0) + 1 ))
+                        echo "$SEQ" > "$QUEUE/seq"
+                        echo "$SEQ $RELEASE $$" > "$QUEUE/next"
+                        echo "$SEQ"
+                    } 8> "$QUEUE/next.lock"
+                )
+            fi
+
+            exec 9> "$QUEUE/lock"
+            if ! flock -n 9; then
+                echo "Waiting for the running deploy ($(cat "$QUEUE/owner" 2>/dev/null || echo unknown)) to finish ..."
+                flock 9
+            fi
+            if [ "$RELEASE" != "-" ]; then
+                NEWER=$(superseded_by "$SEQ")
+                if [ -n "$NEWER" ]; then
+                    echo "SUPERSEDED $NEWER"
+                    exit 0
+                fi
+                echo "$SEQ $RELEASE" > "$QUEUE/last"
+                echo "release $RELEASE, pid $$, since $(date '+%F %T')" > "$QUEUE/owner"
+            else
+                echo "pid $$, since $(date '+%F %T')" > "$QUEUE/owner"
+            fi
+            trap 'rm -f "$QUEUE/owner"' EXIT
+            echo "ACQUIRED"
+
+            while true; do
+                IFS= read -r -t "$LEASE" _ && continue
+                if [ $? -gt 128 ]; then
+                    echo "No heartbeat from the deploy for ${LEASE}s, giving its turn up" >&2
+                fi
+                break
+            done
+            """;
+
+    static String deployQueueScript;
+
+    /** A deploy's turn in the queue; the server hands it on when this closes or the heartbeats stop. */
+    record DeployTurn(Process holder) implements AutoCloseable {
+        @Override
+        public void close() throws IOException {
+            holder.getOutputStream().close();
+            holder.onExit().join();
+        }
+    }
+
+    /**
+     * Wait until no other deploy of this app is rolling out. Returns null if a newer release was queued
+     * meanwhile (or has already gone out): only the newest waiting release is rolled out, so this one is skipped.
+     * Operations that roll out no new build (hot swap, promote, rollback, env changes) pass a null release id:
+     * they only wait for their turn, and neither supersede releases nor are superseded.
+     */
+    static DeployTurn awaitDeployTurn(String releaseId) throws Exception {
+        // A waiting deploy of the same app is still reading its copy, which the rename leaves alone
+        if (deployQueueScript == null) {
+            deployQueueScript = uploadScript(user, "deploy-queue", DEPLOY_QUEUE_SCRIPT);
+        }
+        var holder = new ProcessBuilder("ssh", "-i", sshKey, "-o", "StrictHostKeyChecking=accept-new",
+                "-o", "ServerAliveInterval=15", user + "@" + host,
+                "bash " + deployQueueScript + " " + (releaseId == null ? "-" : releaseId) + " " + DEPLOY_LEASE_SECONDS)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        var reader = new BufferedReader(new InputStreamReader(holder.getInputStream()));
+        for (String line; (line = reader.readLine()) != null; ) {
+            if (line.equals("ACQUIRED")) {
+                var heartbeat = new Thread(() -> {
+                    var out = holder.getOutputStream();
+                    try {
+                        while (true) {
+                            Thread.sleep(DEPLOY_LEASE_SECONDS * 1000L / 4);
+                            out.write('\n');
+                            out.flush();
+                        }
+                    } catch (IOException | InterruptedException e) {
+                        // turn handed back, or the connection is gone and the lease runs out on the server
+                    }
+                });
+                heartbeat.setDaemon(true);
+                heartbeat.start();
+                return new DeployTurn(holder);
+            }
+            if (line.startsWith("SUPERSEDED ")) {
+                holder.waitFor();
+                System.out.println("Release " + releaseId + " is superseded by the newer release "
+                        + line.substring("SUPERSEDED ".length()) + "; not rolling it out.");
+                return null;
+            }
+            System.out.println(line);
+        }
+        int exit = holder.waitFor();
+        System.err.println("Could not join the deploy queue (exit " + exit + ")");
+        System.exit(exit == 0 ? 1 : exit);
+        return null;
+    }
+
+    // -----------------------------------------------------------------------
+    // stage / promote – blue-green deploy split into transfer and cutover
+    // -----------------------------------------------------------------------
+    static void stage(String[] args) throws Exception {
+        requireBlueGreen("stage");
+        boolean start = Arrays.asList(args).contains("--start");
+        String syncSource = build();
+
+        System.out.println("Syncing to server ...");
+        String releaseId = syncRelease(syncSource);
+        try (var turn = awaitDeployTurn(releaseId)) {
+            if (turn == null) {
+                return;
+            }
+            String active = activeSlot();
+            String inactive = "blue".equals(active) ? "green" : "blue";
+            System.out.println("Staging to inactive slot " + inactive + " (active: " + active + ") ...");
+            releases("activate", "app-" + inactive, releaseId);
+            ssh(user, "echo " + releaseId + " > /home/" + user + "/staged");
+
+            if (start) {
+                runBlueGreenSwap("start");
+            }
+            System.out.println("Staged release " + releaseId + " on slot " + inactive
+                    + (start ? " (running)" : "") + ". Run 'Deploy promote' to switch traffic.");
+        }
+    }
+
+    @SuppressWarnings("try") // the turn is only held
+    static void promote() throws Exception {
+        requireBlueGreen("promote");
+        try (var turn = awaitDeployTurn(null)) {
+            String staged = sshOutput(user, "cat /home/" + user + "/staged 2>/dev/null || true").trim();
+            if (staged.isEmpty()) {
+                System.err.println("Nothing staged; run 'Deploy stage' first");
+                System.exit(1);
+            }
+            String active = activeSlot();
+            String inactive = "blue".equals(active) ? "green" : "blue";
+            if (!staged.equals(releases("current", "app-" + inactive))) {
+                System.err.println("Staged release " + staged + " is no longer on the inactive slot " + inactive
+                        + " (another deploy happened since); run 'Deploy stage' again");
+                System.exit(1);
+            }
+            System.out.println("Promoting release " + staged + " on slot " + inactive + " ...");
+            swapToInactive("promote");
+            ssh(user, "rm -f /home/" + user + "/staged");
+            pruneReleases();
+            System.out.println("Promoted successfully! Active slot is now: " + inactive + ", release: " + staged);
+        }
+    }
+
+    static void requireBlueGreen(String command) {
+        if (!blueGreen) {
+            System.err.println("'" + command + "' requires BLUE_GREEN=yes in vmhosting.conf");
+            System.exit(1);
+        }
+    }
+
+    static String activeSlot() throws Exception {
+        String activeRaw = sshOutputAsRoot("cat /home/" + user + "/active 2>/dev/null || echo blue").trim();
+        return activeRaw.isBlank() ? "blue" : activeRaw;
+    }
+
+    // -----------------------------------------------------------------------
+    // releases – versioned release directories with atomic symlink switching
+    // -----------------------------------------------------------------------
+    static final String RELEASE_SCRIPT = """
+            #!/bin/bash
+            set -euo pipefail
+            # Runs as the app user. app, app-blue and app-green are symlinks into releases/<id>.
+            cd "$HOME"
+            ACTION="$1"
+            mkdir -p releases
+
+            case "$ACTION" in
+                prepare)
+                    # Migrate plain app directories from before versioned releases
+                    for LINK in app app-blue app-green; do
+                        if [ -d "$LINK" ] && [ ! -L "$LINK" ]; then
+                            if [ -z "$(ls -A "$LINK")" ]; then
+                                rmdir "$LINK"
+                            else
+                                mv "$LINK" "releases/00000000-000000-$LINK"
+                                ln -s "releases/00000000-000000-$LINK" "$LINK"
+                            fi
+                        fi
+                    done
+                    # Migrate the jlink runtime all releases shared before runtimes were versioned
+                    if [ -d runtime ] && [ ! -L runtime ]; then
+                        mkdir -p runtimes
+                        mv runtime runtimes/shared
+                        ln -s runtimes/shared runtime
+                        for RELEASE in releases/*/; do
+                            if [ ! -e "${RELEASE}runtime" ]; then ln -s ../../runtimes/shared "${RELEASE}runtime"; fi
+                        done
+                    fi
+                    # Newest release, used as --link-dest so unchanged files are hard-linked
+                    ls -1 releases | sort | tail -n 1
+                    ;;
+                runtime)
+                    # A release runs on the jlink runtime it was deployed with; runtimes/<key> are keyed by content
+                    mkdir -p "releases/$2"
+                    ln -sfn "../../runtimes/$3" "releases/$2/runtime"
+                    ;;
+                activate)
+                    LINK="$2"
+                    RELEASE="$3"
+                    if [ ! -d "releases/$RELEASE" ]; then
+                        echo "ERROR: release $RELEASE not found" >&2
+                        exit 1
+                    fi
+                    # rename(2) of a fresh symlink over the old one switches atomically
+                    ln -sfn "releases/$RELEASE" "$LINK.new"
+                    mv -Tf "$LINK.new" "$LINK"
+                    ;;
+                current)
+                    readlink "$2" 2>/dev/null | sed 's|^releases/||' || true
+                    ;;
+                list)
+                    ls -1 releases | sort
+                    ;;
+                prune)
+                    KEEP="$2"
+                    IN_USE=" $(for L in app app-blue app-green; do readlink "$L" 2>/dev/null || true; done | sed 's|^releases/||' | tr '\\n' ' ') "
+                    ls -1 releases | sort -r | tail -n +$((KEEP + 1)) | while read -r RELEASE; do
+                        case "$IN_USE" in
+                            *" $RELEASE "*) ;;
+                            *) echo "Removing old release $RELEASE"; rm -rf "releases/$RELEASE" ;;
+                        esac
+                    done
+                    # Runtimes no remaining release links to
+                    USED=" $(for L in releases/*/runtime; do readlink "$L" 2>/dev/null || true; done | sed 's|^\\.\\./\\.\\./||' | tr '\\n' ' ') "
+                    for RUNTIME in runtimes/*; do
+                        [ -d "$RUNTIME" ] || continue
+                        case "$USED" in
+                            *" $RUNTIME "*) ;;
+                            *) echo "Removing unused runtime ${RUNTIME#runtimes/}"; rm -rf "$RUNTIME" ;;
+                        esac
+                    done
+                    ;;
+                *)
+                    echo "Unknown action: $ACTION" >&2
+                    exit 1
+                    ;;
+            esac
+            """;
+
+    static String releaseScript;
+
+    /** Run an action of RELEASE_SCRIPT as the app user and return its output. */
+    static String releases(String... args) throws Exception {
+        if (releaseScript == null) {
+            releaseScript = uploadScript(user, "releases", RELEASE_SCRIPT);
+        }
+        return sshOutput(user, lowPriority() + "bash " + releaseScript + " " + String.join(" ", args)).trim();
+    }
 
-            Path extracted = Path.of("target", "extracted");
-            if (Files.exists(extracted)) {
-                deleteRecursively(extracted);
+    /** Rsync into a new releases/<id> directory, hard-linking files unchanged since the newest release. */
+    static String syncRelease(String syncSource) throws Exception {
+        String previous = releases("prepare");
+        String releaseId = newReleaseId();
+        if ("jlink".equals(runtime) && !"native".equals(appType)) {
+            releases("runtime", releaseId, syncRuntime(syncSource));
+        }
+        var cmd = new ArrayList<>(List.of("rsync", "-az", "--delete", "--filter=P /runtime", "--stats",
+                "-e", "ssh -i " + sshKey + " -o StrictHostKeyChecking=accept-new"));
+        cmd.addAll(rsyncQos());
+        if (jarStore) {
+            // Seeded store jars are root's: rsync must not try to change their mode or group
+            cmd.addAll(List.of("--no-perms", "--no-group"));
+            if (!previous.isEmpty()) {
+                String script = uploadScript("jar-store", JAR_STORE_SCRIPT);
+                sshAsRoot(lowPriorityScope() + "bash " + script + " " + user + " seed " + releaseId + " " + previous);
             }
-            run("java", "-Djarmode=tools", "-jar", jar.toString(),
-                    "extract", "--destination", extracted.toString());
+        }
+        if (!previous.isEmpty()) {
+            cmd.add("--link-dest=/home/" + user + "/releases/" + previous);
+        }
+        cmd.add(syncSource);
+        cmd.add(user + "@" + host + ":/home/" + user + "/releases/" + releaseId + "/");
+        run(cmd.toArray(String[]::new));
+        if (jarStore) {
+            String script = uploadScript("jar-store", JAR_STORE_SCRIPT);
+            sshAsRoot(lowPriorityScope() + "bash " + script + " " + user + " link " + releaseId);
+        }
+        return releaseId;
+    }
 
-            Path extractRoot = findExtractedRoot(extracted);
+    static void pruneReleases() throws Exception {
+        String removed = releases("prune", String.valueOf(keepReleases));
+        if (!removed.isEmpty()) {
+            System.out.println(removed);
+        }
+    }
 
-            Path extractedJar = findJar(extractRoot);
-            Path renamedJar = extractRoot.resolve(user + ".jar");
-            if (!extractedJar.getFileName().toString().equals(user + ".jar")) {
-                Files.move(extractedJar, renamedJar, StandardCopyOption.REPLACE_EXISTING);
+    /** Release id: timestamp, plus the short git commit when building from a git checkout. */
+    static String newReleaseId() throws InterruptedException {
+        String id = timestamp();
+        try {
+            var process = new ProcessBuilder("git", "rev-parse", "--short", "HEAD")
+                    .redirectError(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            String commit = new String(process.getInputStream().readAllBytes()).trim();
+            if (process.waitFor() == 0 && commit.matches("[0-9a-f]+")) {
+                id += "-" + commit;
             }
-
-            run("rsync", "-az", "--delete", "--stats",
-                    "-e", "ssh -i " + sshKey + " -o StrictHostKeyChecking=accept-new",
-                    extractRoot + "/",
-                    user + "@" + host + ":/home/" + user + "/app/");
+        } catch (IOException e) {
+            // not a git checkout or git missing; timestamp alone is unique enough
         }
+        return id;
+    }
 
-        // 3. Restart the systemd service
-        System.out.println("Restarting service ...");
-        sshAsRoot("systemctl restart " + user);
-
-        System.out.println("Deployed successfully!");
+    static void listReleases() throws Exception {
+        releases("prepare");
+        var inUse = new HashMap<String, String>();
+        for (String link : blueGreen ? List.of("app-blue", "app-green") : List.of("app")) {
+            String release = releases("current", link);
+            if (!release.isEmpty()) inUse.merge(release, link, (a, b) -> a + ", " + b);
+        }
+        String output = releases("list");
+        if (output.isEmpty()) {
+            System.out.println("No releases on the server yet.");
+            return;
+        }
+        for (String release : output.lines().toList()) {
+            System.out.println((inUse.containsKey(release) ? "* " : "  ") + release
+                    + (inUse.containsKey(release) ? "  (" + inUse.get(release) + ")" : ""));
+        }
     }
 
     // -----------------------------------------------------------------------
-    // deployBlueGreen – zero-downtime blue/green deploy
+    // rollback – restart or swap to an earlier release without build or transfer
     // -----------------------------------------------------------------------
-    static void deployBlueGreen(boolean quarkus, boolean plain, boolean mavenw, boolean pom) throws Exception {
-        // Read the current active slot to determine where to rsync
-        System.out.println("Reading active slot ...");
-        String activeRaw = sshOutputAsRoot("cat /home/" + user + "/active 2>/dev/null || echo blue").trim();
-        String active = activeRaw.isBlank() ? "blue" : activeRaw;
-        String inactive = "blue".equals(active) ? "green" : "blue";
-        System.out.println("Active slot: " + active + ", deploying to: " + inactive);
-
-        String mgmtPortBlue = (managementPort != null && !managementPort.isBlank()) ? managementPort : "0";
-
-        // Sync build artifacts to the inactive slot directory
-        System.out.println("Syncing to server (slot: " + inactive + ") ...");
-        String remoteDir = user + "@" + host + ":/home/" + user + "/app-" + inactive + "/";
-
-        if (quarkus) {
-            run("rsync", "-az", "--delete", "--stats",
-                    "-e", "ssh -i " + sshKey + " -o StrictHostKeyChecking=accept-new",
-                    "target/quarkus-app",
-                    remoteDir);
-        } else if (plain) {
-            Path staging = stagePlainJar(mavenw, pom);
-            run("rsync", "-az", "--delete", "--stats",
-                    "-e", "ssh -i " + sshKey + " -o StrictHostKeyChecking=accept-new",
-                    staging + "/",
-                    remoteDir);
-        } else {
-            Path jarDir = (mavenw || pom) ? Path.of("target") : Path.of("build", "libs");
-            Path jar = findJar(jarDir);
-            System.out.println("Found jar: " + jar);
-
-            Path extracted = Path.of("target", "extracted");
-            if (Files.exists(extracted)) {
-                deleteRecursively(extracted);
+    @SuppressWarnings("try") // the turn is only held
+    static void rollback(String[] args) throws Exception {
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        try (var turn = awaitDeployTurn(null)) {
+            releases("prepare");
+            List<String> all = releases("list").lines().toList();
+            String active = blueGreen ? activeSlot() : null;
+            String currentLink = blueGreen ? "app-" + active : "app";
+            String current = releases("current", currentLink);
+            int index = all.indexOf(current);
+            if (index < 0) {
+                System.err.println("Current release of " + currentLink + " is unknown; nothing to roll back from");
+                System.exit(1);
             }
-            run("java", "-Djarmode=tools", "-jar", jar.toString(),
-                    "extract", "--destination", extracted.toString());
-
-            Path extractRoot = findExtractedRoot(extracted);
-            Path extractedJar = findJar(extractRoot);
-            Path renamedJar = extractRoot.resolve(user + ".jar");
-            if (!extractedJar.getFileName().toString().equals(user + ".jar")) {
-                Files.move(extractedJar, renamedJar, StandardCopyOption.REPLACE_EXISTING);
+            if (index - steps < 0) {
+                System.err.println("Only " + index + " earlier release(s) kept on the server");
+                System.exit(1);
             }
+            String target = all.get(index - steps);
+            System.out.println("Rolling back from " + current + " to " + target + " ...");
 
-            run("rsync", "-az", "--delete", "--stats",
-                    "-e", "ssh -i " + sshKey + " -o StrictHostKeyChecking=accept-new",
-                    extractRoot + "/",
-                    remoteDir);
-        }
-
-        // Upload and run the swap (or graceful drain) script on the server
-        if (gracefulDrain) {
-            System.out.println("Running graceful blue-green drain ...");
-            Path tempScript = Files.createTempFile("bg-graceful", ".sh");
-            Files.writeString(tempScript, BLUE_GREEN_GRACEFUL_SCRIPT);
-            scp(tempScript.toString(), adminUser + "@" + host + ":/tmp/bg-graceful.sh");
-            Files.delete(tempScript);
-            sshAsRootInteractive("bash /tmp/bg-graceful.sh " + user + " " + proxy + " " + (https ? "yes" : "no") + " '" + domain + "'"
-                    + " " + slotCookie + " " + drainTimeout + " " + notifyPath + " " + activeUsersPath
-                    + " " + mgmtPortBlue);
-        } else {
-            System.out.println("Running blue-green swap ...");
-            Path tempScript = Files.createTempFile("bg-swap", ".sh");
-            Files.writeString(tempScript, BLUE_GREEN_SWAP_SCRIPT);
-            scp(tempScript.toString(), adminUser + "@" + host + ":/tmp/bg-swap.sh");
-            Files.delete(tempScript);
-            sshAsRoot("bash /tmp/bg-swap.sh " + user + " " + proxy + " " + (https ? "yes" : "no") + " '" + domain + "'"
-                    + " " + mgmtPortBlue);
+            if (blueGreen) {
+                String inactive = "blue".equals(active) ? "green" : "blue";
+                releases("activate", "app-" + inactive, target);
+                runBlueGreenSwap("full");
+                System.out.println("Rolled back to " + target + ". Active slot is now: " + inactive);
+            } else {
+                releases("activate", "app", target);
+                sshAsRoot("systemctl restart " + user);
+                System.out.println("Rolled back to " + target + ".");
+            }
         }
-
-        System.out.println("Deployed successfully! Active slot is now: " + inactive);
     }
 
     // -----------------------------------------------------------------------
@@ -968,23 +3314,7 @@ public class Deploy {
             if (arg.matches("[0-9]+")) lines = arg;
             else slotArg = arg;
         }
-        String unitName = user;
-        if (blueGreen) {
-            String active = sshOutputAsRoot("cat /home/" + user + "/active 2>/dev/null || echo blue").trim();
-            if (active.isBlank()) active = "blue";
-            String inactive = "blue".equals(active) ? "green" : "blue";
-            String slot = switch (slotArg == null ? "active" : slotArg) {
-                case "inactive"       -> inactive;
-                case "blue", "green"  -> slotArg;
-                case "active"         -> active;
-                default -> {
-                    System.err.println("Unknown slot '" + slotArg + "'. Use: blue, green, active, inactive");
-                    System.exit(1);
-                    yield active;
-                }
-            };
-            unitName = user + "-" + slot;
-        }
+        String unitName = resolveUnit(slotArg);
         String cmd = "journalctl -u " + unitName + " -n " + lines + " -f";
         if (!"root".equals(adminUser)) {
             cmd = "sudo " + cmd;
@@ -998,6 +3328,180 @@ public class Deploy {
                 .waitFor();
     }
 
+    /** Resolve the systemd unit for a slot argument (active, inactive, blue, green); without blue-green always the single unit. */
+    static String resolveUnit(String slotArg) throws Exception {
+        if (!blueGreen) {
+            return user;
+        }
+        String active = activeSlot();
+        String inactive = "blue".equals(active) ? "green" : "blue";
+        String slot = switch (slotArg == null ? "active" : slotArg) {
+            case "inactive"       -> inactive;
+            case "blue", "green"  -> slotArg;
+            case "active"         -> active;
+            default -> {
+                System.err.println("Unknown slot '" + slotArg + "'. Use: blue, green, active, inactive");
+                System.exit(1);
+                yield active;
+            }
+        };
+        return user + "-" + slot;
+    }
+
+    // -----------------------------------------------------------------------
+    // profile – record JFR on the running JVM, fetch it and print a summary
+    // -----------------------------------------------------------------------
+    static void profile(String[] args) throws Exception {
+        requireJvm();
+        int seconds = 30;
+        String slotArg = null;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.matches("[0-9]+")) seconds = Integer.parseInt(arg);
+            else slotArg = arg;
+        }
+        String unitName = resolveUnit(slotArg);
+        String pid = mainPid(unitName);
+        String remoteFile = "/home/" + user + "/diagnostics/profile-" + unitName + "-" + timestamp() + ".jfr";
+        ssh(user, "mkdir -p /home/" + user + "/diagnostics");
+
+        // The recording is started through the JVM's attach mechanism (jcmd) as the app user,
+        // JFR writes the file itself when the duration elapses
+        System.out.println("Recording " + seconds + "s of JFR data from " + unitName + " (pid " + pid + ") ...");
+        sshAsRoot(jcmd(pid) + " JFR.start name=boot2vm settings=profile duration=" + seconds + "s filename=" + remoteFile);
+        Thread.sleep(seconds * 1000L);
+        for (int i = 0; i < 30; i++) {
+            String status = sshOutputAsRoot(jcmd(pid) + " JFR.check name=boot2vm 2>&1 || true");
+            if (!status.contains("(running)")) break;
+            Thread.sleep(1000);
+        }
+
+        Path recording = fetchDiagnostic(remoteFile);
+        System.out.println("Recording saved to " + recording + " (open with JDK Mission Control for the full picture)");
+        summarizeRecording(recording);
+    }
+
+    // -----------------------------------------------------------------------
+    // heap – class histogram or streamed heap dump from the running JVM
+    // -----------------------------------------------------------------------
+    static void heap(String[] args) throws Exception {
+        requireJvm();
+        String mode = "histo";
+        String slotArg = null;
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if ("histo".equals(arg) || "dump".equals(arg)) mode = arg;
+            else slotArg = arg;
+        }
+        String unitName = resolveUnit(slotArg);
+        String pid = mainPid(unitName);
+
+        if ("histo".equals(mode)) {
+            System.out.println("Class histogram of " + unitName + " (pid " + pid + "), top 40:");
+            System.out.print(sshOutputAsRoot(jcmd(pid) + " GC.class_histogram | head -n 45"));
+            return;
+        }
+
+        String diagnosticsDir = "/home/" + user + "/diagnostics";
+        ssh(user, "mkdir -p " + diagnosticsDir);
+
+        // A dump left behind by an interrupted transfer is resumed instead of taking a new one. Dumps are
+        // written under a .tmp name and renamed when complete, so a half-written one is discarded instead.
+        ssh(user, "rm -f " + diagnosticsDir + "/heap-*.tmp");
+        String leftover = sshOutputAsRoot("ls -1t " + diagnosticsDir + "/heap-*.hprof.gz 2>/dev/null | head -n 1 || true").trim();
+        if (!leftover.isEmpty()) {
+            System.out.println("Resuming transfer of earlier heap dump " + leftover + " ...");
+            Path dump = fetchDiagnostic(leftover);
+            System.out.println("Heap dump saved to " + dump);
+            return;
+        }
+
+        // The dump is at most the size of the process' resident memory; refuse if it might fill the disk
+        long rssKb = Long.parseLong(sshOutputAsRoot("ps -o rss= -p " + pid).trim());
+        long availableKb = Long.parseLong(sshOutputAsRoot("df --output=avail -k " + diagnosticsDir + " | tail -n 1").trim());
+        if (availableKb < rssKb + rssKb / 5) {
+            System.err.println("Not enough free disk space for a heap dump: " + (availableKb / 1024) + " MB available, "
+                    + (rssKb / 1024) + " MB resident in " + unitName + " (plus 20% margin required)");
+            System.exit(1);
+        }
+
+        String remoteFile = diagnosticsDir + "/heap-" + unitName + "-" + timestamp() + ".hprof.gz";
+        System.out.println("Dumping heap of " + unitName + " (pid " + pid + ", " + (rssKb / 1024) + " MB resident) ...");
+        sshAsRoot(jcmd(pid) + " GC.heap_dump -gz=1 " + remoteFile + ".tmp");
+        ssh(user, "mv " + remoteFile + ".tmp " + remoteFile);
+        Path dump = fetchDiagnostic(remoteFile);
+        System.out.println("Heap dump saved to " + dump + " (open with Eclipse MAT or VisualVM)");
+    }
+
+    /** Summarize CPU samples, allocation samples, lock contention and GC pauses from a JFR file. */
+    static void summarizeRecording(Path file) throws IOException {
+        var cpu = new HashMap<String, Long>();
+        var allocations = new HashMap<String, Long>();
+        var contention = new HashMap<String, Long>();
+        long gcCount = 0;
+        Duration gcTotal = Duration.ZERO, gcLongest = Duration.ZERO;
+        try (var events = new RecordingFile(file)) {
+            while (events.hasMoreEvents()) {
+                RecordedEvent event = events.readEvent();
+                switch (event.getEventType().getName()) {
+                    case "jdk.ExecutionSample" -> cpu.merge(topFrame(event), 1L, Long::sum);
+                    case "jdk.ObjectAllocationSample" -> allocations.merge(topFrame(event), event.getLong("weight"), Long::sum);
+                    case "jdk.JavaMonitorEnter" -> contention.merge(className(event.getClass("monitorClass")),
+                            event.getDuration().toMillis(), Long::sum);
+                    case "jdk.ThreadPark" -> {
+                        // Only parks on a lock; idle pool threads park on queues and conditions waiting for work
+                        String parked = className(event.getClass("parkedClass"));
+                        if (parked.contains("Lock") && !parked.endsWith("$ConditionObject")) {
+                            contention.merge(parked, event.getDuration().toMillis(), Long::sum);
+                        }
+                    }
+                    case "jdk.GarbageCollection" -> {
+                        gcCount++;
+                        gcTotal = gcTotal.plus(event.getDuration("sumOfPauses"));
+                        if (event.getDuration("longestPause").compareTo(gcLongest) > 0) {
+                            gcLongest = event.getDuration("longestPause");
+                        }
+                    }
+                    default -> { }
+                }
+            }
+        }
+        printTop("Top CPU methods (execution samples)", cpu, n -> n + " samples");
+        printTop("Allocation hot spots (sampled bytes)", allocations, n -> (n / 1024 / 1024) + " MB");
+        printTop("Lock contention (blocked time by monitor or lock class)", contention, n -> n + " ms");
+        System.out.println();
+        System.out.println("GC pauses: " + gcCount + " collections, total " + gcTotal.toMillis()
+                + " ms, longest " + gcLongest.toMillis() + " ms");
+    }
+
+    static void printTop(String title, Map<String, Long> values, java.util.function.LongFunction<String> format) {
+        System.out.println();
+        System.out.println(title + ":");
+        if (values.isEmpty()) {
+            System.out.println("  (no events recorded)");
+            return;
+        }
+        long total = values.values().stream().mapToLong(Long::longValue).sum();
+        values.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(10)
+                .forEach(e -> System.out.printf("  %5.1f%%  %-14s %s%n",
+                        total == 0 ? 0.0 : 100.0 * e.getValue() / total, format.apply(e.getValue()), e.getKey()));
+    }
+
+    static String topFrame(RecordedEvent event) {
+        RecordedStackTrace stackTrace = event.getStackTrace();
+        if (stackTrace == null || stackTrace.getFrames().isEmpty()) {
+            return "<unknown>";
+        }
+        RecordedMethod method = stackTrace.getFrames().get(0).getMethod();
+        return method.getType().getName() + "." + method.getName();
+    }
+
+    static String className(RecordedClass recordedClass) {
+        return recordedClass == null ? "<unknown>" : recordedClass.getName();
+    }
+
     // -----------------------------------------------------------------------
     // add-key – register an additional SSH public key for the app user
     // -----------------------------------------------------------------------
@@ -1044,6 +3548,90 @@ public class Deploy {
                 || s.startsWith("ecdsa-sha2-") || s.startsWith("sk-ssh-");
     }
 
+    // -----------------------------------------------------------------------
+    // multi-app hosting – port registry and the host-wide jar store
+    // -----------------------------------------------------------------------
+
+    /**
+     * Base port for APP_PORT=auto: the one registered for this app, else the first from 8080 in steps of 10
+     * that no other app on the host has registered and nothing listens on (the app uses it and the next one).
+     */
+    static int allocatePort() throws Exception {
+        var used = new HashSet<Integer>();
+        for (String line : sshOutputAsRoot("cat /etc/boot2vm/ports 2>/dev/null || true").lines().toList()) {
+            String[] parts = line.trim().split("\\s+");
+            if (parts.length < 2) continue;
+            if (parts[0].equals(user)) return Integer.parseInt(parts[1]);
+            used.add(Integer.parseInt(parts[1]));
+        }
+        var listening = new HashSet<Integer>();
+        for (String address : sshOutputAsRoot("ss -ltnH | awk '{ print $4 }'").lines().toList()) {
+            listening.add(Integer.parseInt(address.substring(address.lastIndexOf(':') + 1)));
+        }
+        int port = 8080;
+        while (used.contains(port) || listening.contains(port) || listening.contains(port + 1)) {
+            port += 10;
+        }
+        return port;
+    }
+
+    static final String JAR_STORE_SCRIPT = """
+            #!/bin/bash
+            # link: replace each jar in the lib directories of a release with a hard link to the store copy with
+            # the same content, so apps and releases with the same dependencies keep them once on disk and share
+            # their page cache. Store copies belong to root, so no app can change a jar another app runs.
+            # seed: before the rsync of a new release, link the previous release's store jars into it. The app
+            # user cannot hard-link root's files (fs.protected_hardlinks), so rsync's --link-dest would copy them;
+            # this way rsync finds them in place and leaves them alone.
+            set -euo pipefail
+            APP_USER="$1"
+            ACTION="$2"                      # link | seed
+            RELEASE="/home/$APP_USER/releases/$3"
+            # Next to the app homes, as hard links cannot cross file systems
+            STORE=/home/.boot2vm-jars
+            mkdir -p "$STORE"
+            chmod 711 "$STORE"
+            exec 9> "$STORE/.lock"
+            flock 9
+
+            if [ "$ACTION" = "seed" ]; then
+                PREVIOUS="/home/$APP_USER/releases/$4"
+                SEEDED=0
+                while IFS= read -r -d '' JAR; do
+                    TARGET="$RELEASE/${JAR#"$PREVIOUS"/}"
+                    runuser -u "$APP_USER" -- mkdir -p "$(dirname "$TARGET")"
+                    ln -f "$JAR" "$TARGET"
+                    SEEDED=$((SEEDED + 1))
+                done < <(find "$PREVIOUS" -path '*/lib/*' -name '*.jar' -type f -user root -print0)
+                echo "Jar store: $SEEDED jar(s) linked from release $4"
+                exit 0
+            fi
+
+            LINKED=0
+            SAVED=0
+            while IFS= read -r -d '' JAR; do
+                # Already a store link, hard-linked by rsync from the previous release
+                if [ "$(stat -c %u "$JAR")" = "0" ]; then continue; fi
+                STORED="$STORE/$(sha256sum < "$JAR" | cut -d' ' -f1).jar"
+                if [ -f "$STORED" ]; then
+                    SAVED=$((SAVED + $(stat -c %s "$JAR")))
+                else
+                    install -m 644 -o root -g root "$JAR" "$STORED.tmp"
+                    touch -r "$JAR" "$STORED.tmp"
+                    mv "$STORED.tmp" "$STORED"
+                fi
+                if ! ln -f "$STORED" "$JAR" 2>/dev/null; then
+                    echo "Jar store: $STORE is not on the file system of /home/$APP_USER, skipping" >&2
+                    exit 0
+                fi
+                LINKED=$((LINKED + 1))
+            done < <(find "$RELEASE" -path '*/lib/*' -name '*.jar' -type f -print0)
+            echo "Jar store: linked $LINKED jar(s), $((SAVED / 1048576)) MB shared with other apps or releases"
+
+            # Jars no release links to any more
+            find "$STORE" -name '*.jar' -links 1 -delete
+            """;
+
     // -----------------------------------------------------------------------
     // clean – remove app, service, proxy config, and user from the server
     // -----------------------------------------------------------------------
@@ -1062,17 +3650,22 @@ public class Deploy {
                 rm -f "/etc/systemd/system/$APP_USER-blue.service"
                 rm -f "/etc/systemd/system/$APP_USER-green.service"
             else
-                systemctl stop "$APP_USER" 2>/dev/null || true
-                systemctl disable "$APP_USER" 2>/dev/null || true
-                rm -f "/etc/systemd/system/$APP_USER.service"
+                systemctl stop "$APP_USER" "$APP_USER.socket" 2>/dev/null || true
+                systemctl disable "$APP_USER" "$APP_USER.socket" 2>/dev/null || true
+                rm -f "/etc/systemd/system/$APP_USER.service" "/etc/systemd/system/$APP_USER.socket"
             fi
             systemctl daemon-reload
 
-            if [ "$PROXY" = "caddy" ] && [ -f /etc/caddy/Caddyfile ]; then
+            if [ "$PROXY" = "caddy" ] && [ -f "/etc/caddy/sites/$APP_USER.caddy" ]; then
+                echo "--- Removing Caddy site ---"
+                rm -f "/etc/caddy/sites/$APP_USER.caddy"
+                systemctl reload caddy 2>/dev/null || true
+            elif [ "$PROXY" = "caddy" ] && [ -f /etc/caddy/Caddyfile ] && ! grep -q '^import /etc/caddy/sites/' /etc/caddy/Caddyfile; then
                 echo "--- Resetting Caddy config ---"
                 echo '# empty' > /etc/caddy/Caddyfile
                 systemctl reload caddy 2>/dev/null || true
             fi
+            sed -i "/^$APP_USER /d" /etc/boot2vm/ports 2>/dev/null || true
 
             echo "--- Removing user and home directory ---"
             userdel -r "$APP_USER" 2>/dev/null || true
@@ -1096,15 +3689,238 @@ public class Deploy {
         System.out.println("Server cleaned and vmhosting.conf removed. Run 'init' to start fresh.");
     }
 
+    // -----------------------------------------------------------------------
+    // package cache – JDK and Caddy downloaded once per architecture, pushed over SSH
+    // -----------------------------------------------------------------------
+    static final String REMOTE_PACKAGE_DIR = "/var/cache/boot2vm/packages";
+    static final String JDK_TARBALL = "temurin-25-jdk.tar.gz";
+    static final String CADDY_DEB = "caddy.deb";
+    static final String CRAC_JDK_TARBALL = "zulu-crac-jdk.tar.gz";
+
+    /**
+     * The cached JDK is not covered by unattended-upgrades; remind to re-run init (which refreshes it) once it
+     * has not been checked for updates for PACKAGE_MAX_AGE days.
+     */
+    static void remindOutdatedJdk() throws IOException {
+        Path root = Path.of(expandHome(packageCache));
+        if ("none".equals(packageCache) || "jlink".equals(runtime) || "native".equals(appType) || !Files.isDirectory(root)) {
+            return;
+        }
+        Instant checkedBefore = Instant.now().minus(Duration.ofDays(packageMaxAge));
+        try (var files = Files.walk(root, 2)) {
+            boolean outdated = files.filter(f -> f.getFileName().toString().endsWith(".tar.gz.sha256"))
+                    .anyMatch(f -> f.toFile().lastModified() < checkedBefore.toEpochMilli());
+            if (outdated) {
+                System.out.println("Note: the cached JDK was last checked for updates more than " + packageMaxAge
+                        + " days ago; run 'Deploy init' to install its security updates.");
+            }
+        }
+    }
+
+    /** A package release: where to download it and the publisher's checksum of it. */
+    record PackageRelease(String url, String algorithm, String checksum) {}
+
+    /**
+     * Make sure the local cache holds the JDK (and Caddy) for the server's architecture, downloading what is
+     * missing or outdated, and rsync it to the server. Returns the remote directory, or "" to install from online
+     * repositories.
+     */
+    static String pushPackageCache(boolean caddy) throws Exception {
+        if ("none".equals(packageCache)) {
+            return "";
+        }
+        String arch = sshOutputAsRoot("dpkg --print-architecture").trim();
+        Path dir = Path.of(expandHome(packageCache), arch);
+        try {
+            Files.createDirectories(dir);
+            if (crac) {
+                refreshPackage(dir.resolve(CRAC_JDK_TARBALL), () -> cracJdkRelease(arch));
+            } else if (!"jlink".equals(runtime) && !"native".equals(appType)) {
+                refreshPackage(dir.resolve(JDK_TARBALL), () -> temurinRelease(arch));
+            }
+            if (caddy) {
+                refreshPackage(dir.resolve(CADDY_DEB), () -> caddyRelease(arch));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Package cache incomplete (" + e.getMessage() + "); missing packages are installed online");
+        }
+        try (var files = Files.list(dir)) {
+            if (files.findAny().isEmpty()) {
+                return "";
+            }
+        }
+        System.out.println("Pushing cached packages for " + arch + " ...");
+        sshAsRoot("mkdir -p " + REMOTE_PACKAGE_DIR);
+        run("rsync", "-a", "--stats",
+                "--rsync-path=" + ("root".equals(adminUser) ? "rsync" : "sudo rsync"),
+                "-e", "ssh -i " + sshKey + " -o StrictHostKeyChecking=accept-new",
+                dir + "/",
+                adminUser + "@" + host + ":" + REMOTE_PACKAGE_DIR + "/");
+        return REMOTE_PACKAGE_DIR;
+    }
+
+    /**
+     * Keep a cached package current and verified. Once its SHA-256 file is older than PACKAGE_MAX_AGE days, the
+     * latest release is looked up again and downloaded if it differs. Downloads are checked against the
+     * publisher's checksum; the SHA-256 file written next to the package is checked again by the server.
+     */
+    static void refreshPackage(Path file, java.util.concurrent.Callable<PackageRelease> latest) throws Exception {
+        Path sums = Path.of(file + ".sha256");
+        boolean cached = Files.exists(file) && Files.exists(sums);
+        Instant checkedBefore = Instant.now().minus(Duration.ofDays(packageMaxAge));
+        if (cached && Files.getLastModifiedTime(sums).toInstant().isAfter(checkedBefore)) {
+            return;
+        }
+        PackageRelease release;
+        try {
+            release = latest.call();
+        } catch (IOException e) {
+            if (!cached) {
+                throw e;
+            }
+            System.out.println("Could not check for a newer " + file.getFileName() + " (" + e.getMessage()
+                    + "); keeping the cached one");
+            return;
+        }
+        if (cached && release.checksum().equalsIgnoreCase(fileDigest(file, release.algorithm()))) {
+            Files.setLastModifiedTime(sums, java.nio.file.attribute.FileTime.from(Instant.now()));
+            return;
+        }
+        download(release, file);
+        Files.writeString(sums, fileDigest(file, "SHA-256") + "  " + file.getFileName() + "\n");
+    }
+
+    static PackageRelease temurinRelease(String debianArch) throws Exception {
+        String arch = switch (debianArch) {
+            case "amd64" -> "x64";
+            case "arm64" -> "aarch64";
+            case "armhf" -> "arm";
+            default -> throw new IllegalArgumentException("no Temurin build for " + debianArch);
+        };
+        String assets = httpGet("https://api.adoptium.net/v3/assets/latest/25/hotspot?architecture=" + arch
+                + "&image_type=jdk&os=linux&vendor=eclipse");
+        var matcher = java.util.regex.Pattern.compile("\"package\"\\s*:\\s*\\{([^}]*)\\}").matcher(assets);
+        if (!matcher.find()) {
+            throw new IOException("no Temurin 25 JDK found for " + arch);
+        }
+        String json = matcher.group(1);
+        return new PackageRelease(jsonString(json, "link"), "SHA-256", jsonString(json, "checksum"));
+    }
+
+    /** Latest Azul Zulu 25 JDK with CRaC support (Temurin has no checkpoint/restore). */
+    static PackageRelease cracJdkRelease(String debianArch) throws Exception {
+        String arch = switch (debianArch) {
+            case "amd64" -> "x64";
+            case "arm64" -> "aarch64";
+            default -> throw new IllegalArgumentException("no CRaC JDK for " + debianArch);
+        };
+        String packages = httpGet("https://api.azul.com/metadata/v1/zulu/packages/?java_version=25&os=linux-glibc&arch=" + arch
+                + "&archive_type=tar.gz&java_package_type=jdk&crac_supported=true&release_status=ga&latest=true&page_size=1");
+        if (!packages.contains("\"package_uuid\"")) {
+            throw new IOException("no CRaC JDK 25 found for " + arch);
+        }
+        // The checksum is only part of the package details
+        String details = httpGet("https://api.azul.com/metadata/v1/zulu/packages/" + jsonString(packages, "package_uuid"));
+        return new PackageRelease(jsonString(details, "download_url"), "SHA-256", jsonString(details, "sha256_hash"));
+    }
+
+    static PackageRelease caddyRelease(String debianArch) throws Exception {
+        String arch = switch (debianArch) {
+            case "amd64", "arm64" -> debianArch;
+            case "armhf" -> "armv7";
+            default -> throw new IllegalArgumentException("no Caddy package for " + debianArch);
+        };
+        String release = httpGet("https://api.github.com/repos/caddyserver/caddy/releases/latest");
+        var matcher = java.util.regex.Pattern.compile("\"tag_name\"\\s*:\\s*\"v([^\"]+)\"").matcher(release);
+        if (!matcher.find()) {
+            throw new IOException("could not determine the latest Caddy version");
+        }
+        String version = matcher.group(1);
+        String base = "https://github.com/caddyserver/caddy/releases/download/v" + version + "/";
+        String deb = "caddy_" + version + "_linux_" + arch + ".deb";
+        // Caddy publishes SHA-512 sums of all release files in one checksums file
+        for (String line : httpGet(base + "caddy_" + version + "_checksums.txt").split("\n")) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length == 2 && fields[1].equals(deb)) {
+                return new PackageRelease(base + deb, "SHA-512", fields[0]);
+            }
+        }
+        throw new IOException("no checksum for " + deb + " in the Caddy " + version + " release");
+    }
+
+    /** Value of the first "key": "string" pair in a JSON document. */
+    static String jsonString(String json, String key) throws IOException {
+        var matcher = java.util.regex.Pattern.compile("\"" + key + "\"\\s*:\\s*\"([^\"]+)\"").matcher(json);
+        if (!matcher.find()) {
+            throw new IOException("no " + key + " in package metadata");
+        }
+        return matcher.group(1);
+    }
+
+    static String fileDigest(Path file, String algorithm) throws Exception {
+        var digest = java.security.MessageDigest.getInstance(algorithm);
+        try (var in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[1 << 16];
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    static final HttpClient HTTP = HttpClient.newBuilder().followRedirects(HttpClient.Redirect.NORMAL).build();
+
+    static String httpGet(String url) throws Exception {
+        var response = HTTP.send(HttpRequest.newBuilder(URI.create(url)).build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IOException("HTTP " + response.statusCode() + " from " + url);
+        }
+        return response.body();
+    }
+
+    /** Download a release to target, replacing it only if the download matches the published checksum. */
+    static void download(PackageRelease release, Path target) throws Exception {
+        System.out.println("Downloading " + release.url() + " ...");
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".part");
+        try {
+            var response = HTTP.send(HttpRequest.newBuilder(URI.create(release.url())).build(),
+                    HttpResponse.BodyHandlers.ofFile(temp));
+            if (response.statusCode() != 200) {
+                throw new IOException("HTTP " + response.statusCode() + " from " + release.url());
+            }
+            String actual = fileDigest(temp, release.algorithm());
+            if (!actual.equalsIgnoreCase(release.checksum())) {
+                throw new IOException(release.algorithm() + " mismatch for " + release.url() + ": expected "
+                        + release.checksum() + ", got " + actual);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    static String expandHome(String path) {
+        return path.startsWith("~") ? System.getProperty("user.home") + path.substring(1) : path;
+    }
+
     // -----------------------------------------------------------------------
     // env – manage environment variables on the server
     // -----------------------------------------------------------------------
+    @SuppressWarnings("try") // the turn is only held
     static void env(String[] args) throws Exception {
         String subcommand = args.length > 1 ? args[1] : "list";
         switch (subcommand) {
             case "list" -> envList();
-            case "set" -> envSet(args);
-            case "remove" -> envRemove(args);
+            case "set", "remove" -> {
+                // The new environment takes effect through a restart or swap, one deploy at a time
+                try (var turn = awaitDeployTurn(null)) {
+                    if ("set".equals(subcommand)) {
+                        envSet(args);
+                    } else {
+                        envRemove(args);
+                    }
+                }
+            }
             default -> {
                 System.err.println("Unknown env subcommand: " + subcommand);
                 System.err.println("Usage: Deploy env [set|remove|list]");
@@ -1170,30 +3986,18 @@ public class Deploy {
     static void restartService() throws Exception {
         if (blueGreen) {
             System.out.println("Performing blue-green swap for zero-downtime env change ...");
-            String activeRaw = sshOutputAsRoot("cat /home/" + user + "/active 2>/dev/null || echo blue").trim();
-            String active = activeRaw.isBlank() ? "blue" : activeRaw;
+            String active = activeSlot();
             String inactive = "blue".equals(active) ? "green" : "blue";
-            String mgmtPortBlue = (managementPort != null && !managementPort.isBlank()) ? managementPort : "0";
-
-            // Rsync active slot to inactive so both run the same app code
-            sshAsRoot("rsync -a --delete /home/" + user + "/app-" + active + "/ /home/" + user + "/app-" + inactive + "/");
-
-            if (gracefulDrain) {
-                Path tempScript = Files.createTempFile("bg-graceful", ".sh");
-                Files.writeString(tempScript, BLUE_GREEN_GRACEFUL_SCRIPT);
-                scp(tempScript.toString(), adminUser + "@" + host + ":/tmp/bg-graceful.sh");
-                Files.delete(tempScript);
-                sshAsRootInteractive("bash /tmp/bg-graceful.sh " + user + " " + proxy + " " + (https ? "yes" : "no") + " '" + domain + "'"
-                        + " " + slotCookie + " " + drainTimeout + " " + notifyPath + " " + activeUsersPath
-                        + " " + mgmtPortBlue);
-            } else {
-                Path tempScript = Files.createTempFile("bg-swap", ".sh");
-                Files.writeString(tempScript, BLUE_GREEN_SWAP_SCRIPT);
-                scp(tempScript.toString(), adminUser + "@" + host + ":/tmp/bg-swap.sh");
-                Files.delete(tempScript);
-                sshAsRoot("bash /tmp/bg-swap.sh " + user + " " + proxy + " " + (https ? "yes" : "no") + " '" + domain + "'"
-                        + " " + mgmtPortBlue);
+
+            // Point the inactive slot at the active slot's release so both run the same app code
+            releases("prepare");
+            String current = releases("current", "app-" + active);
+            if (current.isEmpty()) {
+                System.err.println("No release deployed to the active slot yet; run 'Deploy' first");
+                System.exit(1);
             }
+            releases("activate", "app-" + inactive, current);
+            runBlueGreenSwap("full");
             System.out.println("Service restarted (blue-green swap complete).");
         } else {
             System.out.println("Restarting service ...");
@@ -1225,20 +4029,177 @@ public class Deploy {
         return "spring-boot";
     }
 
-    /** Stage the built fat jar as $user.jar in a clean dir suitable for rsync --delete. */
+    /**
+     * Stage a plain jar as $user.jar in plain-staging. A fat (shaded or assembly) jar is split so that only the
+     * project's own code moves on a deploy: entries found in the project's class output stay in $user.jar, the
+     * others go to one jar per top-level package in lib/, listed in the Class-Path of $user.jar. Jars are only
+     * rewritten when their content changes, so unchanged dependencies keep their timestamp and rsync hard-links
+     * them to the previous release, like the lib/ of an extracted Spring Boot jar.
+     */
     static Path stagePlainJar(boolean mavenw, boolean pom) throws IOException {
-        Path jarDir = (mavenw || pom) ? Path.of("target") : Path.of("build", "libs");
+        Path jarDir = (mavenw || pom) ? moduleDir().resolve("target") : moduleDir().resolve("build/libs");
         Path jar = findJar(jarDir);
         System.out.println("Found jar: " + jar);
         Path staging = jar.getParent().resolve("plain-staging");
+        Path appJar = staging.resolve(user + ".jar");
+        Path lib = staging.resolve("lib");
+        Files.createDirectories(staging);
+        try (var files = Files.list(staging)) {
+            for (Path file : files.filter(f -> !f.equals(appJar) && !f.equals(lib)).toList()) {
+                deleteRecursively(file);
+            }
+        }
+
+        var own = new HashMap<String, Path>();
+        for (Path root : classOutputDirs()) {
+            collectFiles(root, root, own);
+        }
+        try (var zip = new java.util.jar.JarFile(jar.toFile(), false)) {
+            var manifest = zip.getManifest() != null ? zip.getManifest() : new java.util.jar.Manifest();
+            var ownEntries = new ArrayList<java.util.zip.ZipEntry>();
+            var groups = new TreeMap<String, List<java.util.zip.ZipEntry>>();
+            for (var entry : Collections.list(zip.entries())) {
+                String name = entry.getName();
+                if (entry.isDirectory() || name.equalsIgnoreCase(java.util.jar.JarFile.MANIFEST_NAME)
+                        || name.matches("META-INF/[^/]+\\.(SF|RSA|DSA|EC)")) {
+                    continue;
+                }
+                if (own.containsKey(name)) {
+                    ownEntries.add(entry);
+                } else {
+                    groups.computeIfAbsent(libGroup(name), k -> new ArrayList<>()).add(entry);
+                }
+            }
+            if (ownEntries.isEmpty() || groups.isEmpty()) {
+                // Not a fat jar, or the class output is gone (e.g. after a clean): ship the jar as built
+                if (Files.exists(lib)) {
+                    deleteRecursively(lib);
+                }
+                Files.copy(jar, appJar, StandardCopyOption.REPLACE_EXISTING);
+                return staging;
+            }
+
+            Files.createDirectories(lib);
+            var classPath = new ArrayList<String>();
+            String existing = manifest.getMainAttributes().getValue("Class-Path");
+            if (existing != null) {
+                classPath.add(existing);
+            }
+            var libJars = new HashSet<Path>();
+            for (var group : groups.entrySet()) {
+                var libManifest = new java.util.jar.Manifest();
+                libManifest.getMainAttributes().put(java.util.jar.Attributes.Name.MANIFEST_VERSION, "1.0");
+                String multiRelease = manifest.getMainAttributes().getValue("Multi-Release");
+                if (multiRelease != null) {
+                    libManifest.getMainAttributes().putValue("Multi-Release", multiRelease);
+                }
+                Path libJar = lib.resolve(group.getKey() + ".jar");
+                writeIfChanged(libJar, jarBytes(zip, libManifest, group.getValue()));
+                libJars.add(libJar);
+                classPath.add("lib/" + libJar.getFileName());
+            }
+            try (var files = Files.list(lib)) {
+                for (Path file : files.filter(f -> !libJars.contains(f)).toList()) {
+                    deleteRecursively(file);
+                }
+            }
+            manifest.getMainAttributes().putValue("Class-Path", String.join(" ", classPath));
+            writeIfChanged(appJar, jarBytes(zip, manifest, ownEntries));
+            System.out.println("Split into " + appJar.getFileName() + " (" + ownEntries.size() + " entries of the project)"
+                    + " and " + groups.size() + " dependency jars in lib/");
+        }
+        return staging;
+    }
+
+    /** The dependency jar an entry of a fat jar goes to: its top-level package, e.g. org.slf4j. */
+    static String libGroup(String name) {
+        String path = name.replaceFirst("^META-INF/versions/[0-9]+/", "");
+        String[] parts = path.split("/");
+        return parts.length >= 3 && !path.startsWith("META-INF/") ? parts[0] + "." + parts[1] : "resources";
+    }
+
+    /** Entries with their original times and a manifest with a fixed time, so equal input gives equal bytes. */
+    static byte[] jarBytes(java.util.zip.ZipFile zip, java.util.jar.Manifest manifest,
+            List<java.util.zip.ZipEntry> entries) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new java.util.zip.ZipOutputStream(bytes)) {
+            var manifestEntry = new java.util.zip.ZipEntry(java.util.jar.JarFile.MANIFEST_NAME);
+            manifestEntry.setTimeLocal(LocalDateTime.of(2000, 1, 1, 0, 0));
+            out.putNextEntry(manifestEntry);
+            manifest.write(out);
+            out.closeEntry();
+            for (var entry : entries) {
+                var copy = new java.util.zip.ZipEntry(entry.getName());
+                copy.setLastModifiedTime(entry.getLastModifiedTime());
+                out.putNextEntry(copy);
+                try (var in = zip.getInputStream(entry)) {
+                    in.transferTo(out);
+                }
+                out.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    static void writeIfChanged(Path file, byte[] content) throws IOException {
+        if (!Files.exists(file) || !Arrays.equals(Files.readAllBytes(file), content)) {
+            Files.write(file, content);
+        }
+    }
+
+    /** Stage the native executable as $user in a clean dir suitable for rsync --delete. */
+    static Path stageNativeExecutable(boolean maven) throws Exception {
+        Path buildDir = moduleDir().resolve(maven ? "target" : "build");
+        var candidates = new ArrayList<Path>();
+        for (Path dir : List.of(buildDir, buildDir.resolve("native").resolve("nativeCompile"))) {
+            if (!Files.isDirectory(dir)) continue;
+            try (var files = Files.list(dir)) {
+                files.filter(Files::isRegularFile)
+                        .filter(Files::isExecutable)
+                        .filter(f -> f.getFileName().toString().endsWith("-runner") || !f.getFileName().toString().contains("."))
+                        .forEach(candidates::add);
+            }
+        }
+        Path executable = candidates.stream()
+                .max(Comparator.comparing(f -> f.toFile().lastModified()))
+                .orElseThrow(() -> new RuntimeException("No native executable found in " + buildDir));
+        System.out.println("Found native executable: " + executable);
+        requireServerExecutable(executable);
+        Path staging = buildDir.resolve("native-staging");
         if (Files.exists(staging)) {
             deleteRecursively(staging);
         }
         Files.createDirectories(staging);
-        Files.copy(jar, staging.resolve(user + ".jar"));
+        Files.copy(executable, staging.resolve(user), StandardCopyOption.COPY_ATTRIBUTES);
         return staging;
     }
 
+    /**
+     * Exit unless the executable is a Linux (ELF) binary for the server's CPU architecture. Checks the binary
+     * itself rather than the build machine, so container builds on other platforms pass.
+     */
+    static void requireServerExecutable(Path executable) throws Exception {
+        byte[] header = new byte[20];
+        int length;
+        try (var in = Files.newInputStream(executable)) {
+            length = in.readNBytes(header, 0, header.length);
+        }
+        boolean elf = length == header.length && header[0] == 0x7f && header[1] == 'E' && header[2] == 'L' && header[3] == 'F';
+        // e_machine, little-endian on all architectures the server can have
+        int machine = (header[18] & 0xff) | (header[19] & 0xff) << 8;
+        String arch = !elf ? "not a Linux executable" : switch (machine) {
+            case 0x3e -> "amd64";
+            case 0xb7 -> "arm64";
+            case 0x28 -> "armhf";
+            default -> "ELF machine " + machine;
+        };
+        if (!arch.equals(serverArch())) {
+            System.err.println(executable.getFileName() + " is " + arch + ", the server is Linux/" + serverArch()
+                    + ": build on Linux for the server's architecture, or use a container build");
+            System.exit(1);
+        }
+    }
+
     static Path findJar(Path dir) throws IOException {
         try (var files = Files.list(dir)) {
             return files
@@ -1264,18 +4225,96 @@ public class Deploy {
         }
     }
 
+    static void requireJvm() {
+        if ("native".equals(appType)) {
+            System.err.println("Not available for APP_TYPE=native: the app does not run on a JVM");
+            System.exit(1);
+        }
+    }
+
+    /** Main PID of a running systemd unit on the server; exits if the unit is not running. */
+    static String mainPid(String unitName) throws Exception {
+        // A JVM restored from a CRaC checkpoint runs under the launcher, so look for java in the unit's cgroup
+        String pid = sshOutputAsRoot(crac
+                ? "for p in $(cat /sys/fs/cgroup$(systemctl show -p ControlGroup --value " + unitName + ")/cgroup.procs"
+                        + " 2>/dev/null); do [ \"$(cat /proc/$p/comm)\" = java ] && echo $p; done | tail -n 1"
+                : "systemctl show -p MainPID --value " + unitName).trim();
+        if (pid.isEmpty() || "0".equals(pid)) {
+            System.err.println(unitName + " is not running");
+            System.exit(1);
+        }
+        return pid;
+    }
+
+    /**
+     * jcmd invocation against a JVM of the app user (attach only works as the JVM's owner). With jlink, the
+     * jcmd next to the java the process runs, as each release has its own runtime.
+     */
+    static String jcmd(String pid) {
+        if ("jlink".equals(runtime)) {
+            return "runuser -u " + user + " -- sh -c 'exec \"$(dirname \"$(readlink /proc/$0/exe)\")/jcmd\" \"$0\" \"$@\"' " + pid;
+        }
+        return "runuser -u " + user + " -- jcmd " + pid;
+    }
+
+    /**
+     * Fetch a file written by the app user to the local boot2vm-diagnostics directory. Rsync compresses
+     * in transit, keeps partial transfers for resuming and removes the remote copy once complete.
+     */
+    static Path fetchDiagnostic(String remoteFile) throws Exception {
+        Path localDir = Path.of("boot2vm-diagnostics");
+        Files.createDirectories(localDir);
+        String[] cmd = {"rsync", "-az", "--partial", "--append-verify", "--remove-source-files", "--progress",
+                "-e", "ssh -i " + sshKey + " -o StrictHostKeyChecking=accept-new",
+                user + "@" + host + ":" + remoteFile,
+                localDir + "/"};
+        for (int attempt = 1; ; attempt++) {
+            int exit = runForExit(cmd);
+            if (exit == 0) break;
+            if (attempt == 3) {
+                System.err.println("Transfer failed (exit " + exit + "). The file is kept on the server; "
+                        + "run the same command again to resume.");
+                System.exit(exit);
+            }
+            System.out.println("Transfer interrupted, resuming (attempt " + (attempt + 1) + "/3) ...");
+            Thread.sleep(2000);
+        }
+        return localDir.resolve(Path.of(remoteFile).getFileName());
+    }
+
+    static String timestamp() {
+        return LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+    }
+
     static void run(String... cmd) throws Exception {
-        System.out.println("  > " + String.join(" ", cmd));
-        int exit = new ProcessBuilder(cmd)
-                .inheritIO()
-                .start()
-                .waitFor();
+        int exit = runForExit(cmd);
         if (exit != 0) {
             System.err.println("Command failed with exit code " + exit);
             System.exit(exit);
         }
     }
 
+    static String runForOutput(String... cmd) throws Exception {
+        var process = new ProcessBuilder(cmd)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        String output = new String(process.getInputStream().readAllBytes());
+        int exit = process.waitFor();
+        if (exit != 0) {
+            System.err.println("Command failed with exit code " + exit + ": " + String.join(" ", cmd));
+            System.exit(exit);
+        }
+        return output;
+    }
+
+    static int runForExit(String... cmd) throws Exception {
+        System.out.println("  > " + String.join(" ", cmd));
+        return new ProcessBuilder(cmd)
+                .inheritIO()
+                .start()
+                .waitFor();
+    }
+
     static void ssh(String asUser, String command) throws Exception {
         run("ssh", "-i", sshKey, "-o", "StrictHostKeyChecking=accept-new",
                 asUser + "@" + host, command);
@@ -1308,8 +4347,12 @@ public class Deploy {
         if (!"root".equals(adminUser)) {
             command = "sudo " + command;
         }
+        return sshOutput(adminUser, command);
+    }
+
+    static String sshOutput(String asUser, String command) throws Exception {
         var pb = new ProcessBuilder("ssh", "-i", sshKey, "-o", "StrictHostKeyChecking=accept-new",
-                adminUser + "@" + host, command);
+                asUser + "@" + host, command);
         pb.redirectError(ProcessBuilder.Redirect.INHERIT);
         var process = pb.start();
         String output = new String(process.getInputStream().readAllBytes());
@@ -1,5 +1,6 @@
 package org.example;
 
+import com.vaadin.flow.component.AttachEvent;
 import com.vaadin.flow.component.UI;
 import com.vaadin.flow.component.button.Button;
 import com.vaadin.flow.component.html.Div;
@@ -10,10 +11,14 @@ import com.vaadin.flow.component.notification.Notification;
 import com.vaadin.flow.component.orderedlayout.VerticalLayout;
 import com.vaadin.flow.dom.Style;
 import com.vaadin.flow.router.Layout;
+import com.vaadin.flow.router.PreserveOnRefresh;
+import com.vaadin.flow.server.VaadinService;
+import com.vaadin.flow.server.VaadinServlet;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.info.BuildProperties;
 import org.vaadin.firitin.appframework.MainLayout;
 import org.vaadin.firitin.util.BrowserCookie;
+import org.springframework.web.context.support.WebApplicationContextUtils;
 import org.vaadin.firitin.util.style.LumoProps;
 
 import java.time.Instant;
@@ -22,8 +27,11 @@ import java.time.LocalTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
 
 @Layout
+@PreserveOnRefresh
 public class ApplicationLayout extends MainLayout {
 
     private Div currentVersion = new Div("unknown"){{
@@ -31,11 +39,32 @@ public class ApplicationLayout extends MainLayout {
         getStyle().setTextAlign(Style.TextAlign.CENTER);
     }};
 
+    // Spring beans are transient so the session can be serialized for a session handoff; looked up again after that
     @Autowired
-    GracefulBlueGreenService gracefulBlueGreenService;
+    transient GracefulBlueGreenService gracefulBlueGreenService;
 
     @Autowired(required = false)
-    BuildProperties buildProperties;
+    transient BuildProperties buildProperties;
+
+    // The slot this layout was last shown on, a session handoff moves a preserved layout to the new version
+    private String slot;
+    private final List<NewVersionBadge> newVersionBadges = new ArrayList<>();
+
+    private GracefulBlueGreenService gracefulBlueGreenService() {
+        if (gracefulBlueGreenService == null) {
+            gracefulBlueGreenService = VaadinService.getCurrent().getInstantiator().getOrCreate(GracefulBlueGreenService.class);
+        }
+        return gracefulBlueGreenService;
+    }
+
+    private BuildProperties buildProperties() {
+        if (buildProperties == null) {
+            buildProperties = WebApplicationContextUtils
+                    .getRequiredWebApplicationContext(VaadinServlet.getCurrent().getServletContext())
+                    .getBeanProvider(BuildProperties.class).getIfAvailable();
+        }
+        return buildProperties;
+    }
 
     @Override
     protected Object getDrawerHeader() {
@@ -46,8 +75,20 @@ public class ApplicationLayout extends MainLayout {
     protected void addDrawerContent() {
         super.addDrawerContent();
         addToDrawer(currentVersion);
-        if(buildProperties != null) {
-            currentVersion.setText("App built: " + buildProperties.getTime().toString());
+    }
+
+    @Override
+    protected void onAttach(AttachEvent attachEvent) {
+        super.onAttach(attachEvent);
+        // Runs on every (re)load as the layout is preserved on refresh, also after a session handoff
+        String currentSlot = gracefulBlueGreenService().getSlot();
+        if (!currentSlot.equals(slot)) {
+            slot = currentSlot;
+            newVersionBadges.forEach(NewVersionBadge::removeFromParent);
+            newVersionBadges.clear();
+            if(buildProperties() != null) {
+                currentVersion.setText("App built: " + buildProperties().getTime().toString());
+            }
         }
         greetUserOnArrival();
     }
@@ -61,6 +102,8 @@ public class ApplicationLayout extends MainLayout {
                     notifyUser("Hello old user! You were automatically upgraded to a new version.");
                 } else if(GracefulBlueGreenService.USER.equals(value)) {
                     notifyUser("Welcome to the new version!");
+                } else if(GracefulBlueGreenService.HANDOFF.equals(value)) {
+                    notifyUser("Welcome to the new version! Your session came along.");
                 } else if(GracefulBlueGreenService.FORCED.equals(value)) {
                     notifyUser("Sorry, we had to migrate you forcefully");
                 }
@@ -72,7 +115,9 @@ public class ApplicationLayout extends MainLayout {
     }
 
     public void announceNewVersion(Instant upgradeDeadLine) {
-        addToDrawer(new NewVersionBadge(upgradeDeadLine));
+        NewVersionBadge newVersionBadge = new NewVersionBadge(upgradeDeadLine);
+        newVersionBadges.add(newVersionBadge);
+        addToDrawer(newVersionBadge);
         // Also show notification
         notifyUser("There is a new application version available, upgrade as soon as possible!");
     }
@@ -84,7 +129,7 @@ public class ApplicationLayout extends MainLayout {
                 getStyle().setFontSize(LumoProps.FONT_SIZE_XS.var());
             }});
             add(new Button("Update now!", event -> {
-                gracefulBlueGreenService.selfUpgradeUI(UI.getCurrent());
+                gracefulBlueGreenService().selfUpgradeUI(UI.getCurrent());
             }));
 
             setAlignItems(Alignment.CENTER);
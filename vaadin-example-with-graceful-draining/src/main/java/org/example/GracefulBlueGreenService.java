@@ -1,17 +1,42 @@
 package org.example;
 
 import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.UIDetachedException;
 import com.vaadin.flow.server.ServiceInitEvent;
+import com.vaadin.flow.server.VaadinSession;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 import org.vaadin.firitin.util.BrowserCookie;
 
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This service is related to boot2vm's graceful blue green deployments
@@ -25,6 +50,19 @@ public class GracefulBlueGreenService {
     public static final String USER = "USER";
     public static final String FORCED = "FORCED";
     public static final String AUTO = "AUTO";
+    public static final String HANDOFF = "HANDOFF";
+    public static final String HANDOFF_COOKIE = "X-Session-Handoff";
+
+    private static final Logger log = LoggerFactory.getLogger(GracefulBlueGreenService.class);
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final Set<PosixFilePermission> HANDOFF_DIR_PERMISSIONS = PosixFilePermissions.fromString("rwx------");
+    private static final FileAttribute<Set<PosixFilePermission>> HANDOFF_FILE_PERMISSIONS =
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"));
+
+    // Handed-over sessions only contain the app's, Vaadin's (and its add-ons') and JDK classes
+    private static final ObjectInputFilter HANDOFF_FILTER = ObjectInputFilter.Config.createFilter(
+            "org.example.**;com.vaadin.**;elemental.**;org.vaadin.**;in.virit.**;java.**;!*");
 
     private Set<UI> uiSet = ConcurrentHashMap.newKeySet();
 
@@ -34,11 +72,39 @@ public class GracefulBlueGreenService {
     @Value("${app.slot:local}")
     private String slot;
 
+    // Non-pinned UIs are reloaded to the new slot in batches spread over this window, so a freshly
+    // started (cold) JVM does not get all sessions in the same second
+    @Value("${app.migration.window:PT60S}")
+    private Duration migrationWindow;
+
+    @Value("${app.migration.batch-size:25}")
+    private int migrationBatchSize;
+
+    // Both slots run as the same user on the same host, so sessions are handed over through a private directory
+    @Value("${app.session-handoff.dir:${user.home}/session-handoff}")
+    private Path handoffDir;
+
+    // Handoff files nobody came back for (browser closed) are removed after this, matches the default DRAIN_TIMEOUT
+    @Value("${app.session-handoff.max-age:PT300S}")
+    private Duration handoffMaxAge;
+
+    // Session attribute Vaadin stores its VaadinSession under, captured at service init
+    private String vaadinSessionAttribute;
+
+    private final ScheduledExecutorService migrationExecutor =
+            Executors.newSingleThreadScheduledExecutor(Thread.ofVirtual().name("ui-migration").factory());
+
     @PostConstruct
     void init() {
         // Uncomment to test a failing deployment (Deploy script should keep the previous version)
         //System.err.println("Killing server for demo purposes...");
         //System.exit(1);
+        removeStaleHandoffs();
+    }
+
+    @PreDestroy
+    void shutdown() {
+        migrationExecutor.shutdownNow();
     }
 
     public String getSlot() {
@@ -60,6 +126,7 @@ public class GracefulBlueGreenService {
 
     @EventListener
     private void onServiceInit(ServiceInitEvent serviceInitEvent) {
+        vaadinSessionAttribute = VaadinSession.class.getName() + "." + serviceInitEvent.getSource().getServiceName();
         serviceInitEvent.getSource().addUIInitListener(event -> {
             UI ui = event.getUI();
             registerUI(ui);
@@ -72,28 +139,151 @@ public class GracefulBlueGreenService {
         });
     }
 
+    /**
+     * Called via the new-version actuator endpoint. Returns right away; pinned UIs get the banner first,
+     * the rest are migrated in rate-limited batches over the migration window (but before the deadline).
+     */
     public void notifyUIs(String deadline) {
         if (deadline == null || deadline.isBlank()) return;
         Instant deadLine = Instant.parse(deadline);
-        uiSet.forEach(ui -> {
-            if(fixedUiSet.contains(ui)) {
-                ui.access(() -> {
-                    // In this simple demo ApplicationLayout is always the root
-                    ApplicationLayout applicationLayout = (ApplicationLayout) ui.getChildren().findFirst().get();
-                    applicationLayout.announceNewVersion(deadLine);
+        List<UI> pinned = new ArrayList<>();
+        List<UI> unpinned = new ArrayList<>();
+        uiSet.forEach(ui -> (fixedUiSet.contains(ui) ? pinned : unpinned).add(ui));
+
+        migrationExecutor.execute(() -> pinned.forEach(ui -> access(ui, () -> {
+            // In this simple demo ApplicationLayout is always the root
+            ApplicationLayout applicationLayout = (ApplicationLayout) ui.getChildren().findFirst().get();
+            applicationLayout.announceNewVersion(deadLine);
+        })));
+
+        // This user is not on a critical state of the app, just reload brutally, but first
+        // set a cookie, so we can detect these and show a notification from the new server
+        // that the UI was migrated
+        Collections.shuffle(unpinned);
+        int batches = (unpinned.size() + migrationBatchSize - 1) / migrationBatchSize;
+        Duration untilDeadline = Duration.between(Instant.now(), deadLine);
+        Duration window = untilDeadline.compareTo(migrationWindow) < 0 ? untilDeadline : migrationWindow;
+        long interval = batches > 1 ? Math.max(0, window.toMillis()) / batches : 0;
+        for (int i = 0; i < batches; i++) {
+            List<UI> batch = unpinned.subList(i * migrationBatchSize, Math.min(unpinned.size(), (i + 1) * migrationBatchSize));
+            migrationExecutor.schedule(() -> batch.forEach(ui -> {
+                // Pinned in the meantime, or already gone
+                if (!fixedUiSet.contains(ui)) {
+                    access(ui, () -> autoUpgradeUI(ui));
+                }
+            }), i * interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void access(UI ui, Runnable command) {
+        if (ui.isAttached()) {
+            try {
+                ui.access(command::run);
+            } catch (UIDetachedException e) {
+                // Closed after the check, nothing to migrate
+            }
+        }
+    }
+
+    /**
+     * Called via the session-handoff actuator endpoint after the new slot is live. Serializes the sessions of
+     * pinned UIs into the handoff directory and reloads those UIs with a cookie that lets the new slot
+     * (see SessionHandoffFilter) resume the session. Sessions that cannot be serialized stay pinned and are
+     * drained as usual. Returns the number of UIs handed over.
+     */
+    public int handoffPinnedSessions() throws IOException {
+        Files.createDirectories(handoffDir, PosixFilePermissions.asFileAttribute(HANDOFF_DIR_PERMISSIONS));
+        // createDirectories does not touch an existing directory
+        Files.setPosixFilePermissions(handoffDir, HANDOFF_DIR_PERMISSIONS);
+        removeStaleHandoffs();
+        Map<VaadinSession, List<UI>> sessions = new LinkedHashMap<>();
+        fixedUiSet.forEach(ui -> {
+            VaadinSession session = ui.getSession();
+            if (session != null) {
+                sessions.computeIfAbsent(session, s -> new ArrayList<>()).add(ui);
+            }
+        });
+        int transferred = 0;
+        for (var entry : sessions.entrySet()) {
+            byte[] random = new byte[16];
+            RANDOM.nextBytes(random);
+            String token = HexFormat.of().formatHex(random);
+            Path file = handoffDir.resolve(token + ".ser");
+            try {
+                entry.getKey().accessSynchronously(() -> {
+                    try (var out = new ObjectOutputStream(Files.newOutputStream(Files.createFile(file, HANDOFF_FILE_PERMISSIONS)))) {
+                        out.writeObject(entry.getKey());
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
                 });
-            } else {
-                // This user is not on a critical state of the app, just reload brutally, but first
-                // set a cookie, so we can detect these and show a notification from the new server
-                // that the UI was migrated
-                ui.access(() -> {
-                    autoUpgradeUI(ui);
+            } catch (RuntimeException e) {
+                // The cause names the attribute class that is not serializable
+                log.warn("Session not serializable, leaving it pinned to {}", slot, e.getCause() != null ? e.getCause() : e);
+                Files.deleteIfExists(file);
+                continue;
+            }
+            for (UI ui : entry.getValue()) {
+                access(ui, () -> {
+                    unregisterUI(ui);
+                    BrowserCookie.setCookie(HANDOFF_COOKIE, token);
+                    BrowserCookie.setCookie(SLOT_COOKIE, null);
+                    BrowserCookie.setCookie(MIGRATION_TYPE_COOKIE, HANDOFF);
+                    ui.getPage().executeJs("window.location.reload()");
                 });
+                transferred++;
+            }
+        }
+        return transferred;
+    }
 
+    /**
+     * Called by SessionHandoffFilter on the new slot: the handed-over VaadinSession for the token (or null),
+     * removed from the handoff directory, and the session attribute to store it under.
+     */
+    public VaadinSession takeHandedOffSession(String token) {
+        if (!token.matches("[0-9a-f]{32}")) return null;
+        Path file = handoffDir.resolve(token + ".ser");
+        if (!Files.exists(file)) return null;
+        try (var in = new ObjectInputStream(Files.newInputStream(file))) {
+            in.setObjectInputFilter(HANDOFF_FILTER);
+            return (VaadinSession) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            // e.g. session classes changed incompatibly in the new version
+            log.warn("Could not resume handed-over session: {}", e.toString());
+            return null;
+        } finally {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.warn("Could not remove {}", file);
             }
+        }
+    }
 
-        });
+    /**
+     * Removes handoff files older than the handoff max age, i.e. sessions whose browser never came back.
+     */
+    private void removeStaleHandoffs() {
+        if (!Files.isDirectory(handoffDir)) return;
+        Instant cutoff = Instant.now().minus(handoffMaxAge);
+        try (var files = Files.list(handoffDir)) {
+            for (Path file : files.filter(f -> f.getFileName().toString().endsWith(".ser")).toList()) {
+                try {
+                    if (Files.getLastModifiedTime(file).toInstant().isBefore(cutoff)) {
+                        Files.deleteIfExists(file);
+                    }
+                } catch (IOException e) {
+                    log.warn("Could not remove {}", file);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Could not list {}: {}", handoffDir, e.toString());
+        }
+    }
 
+    public String vaadinSessionAttribute() {
+        return vaadinSessionAttribute;
     }
 
     public void autoUpgradeUI(UI ui) {
@@ -0,0 +1,57 @@
+package org.example;
+
+import com.vaadin.flow.server.VaadinSession;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.Cookie;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+
+/**
+ * Resumes a session handed over by the old slot: the first request carrying the handoff cookie gets the
+ * deserialized VaadinSession installed into its HTTP session before Vaadin looks it up, the same way Vaadin
+ * picks up sessions a servlet container restored after a restart.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class SessionHandoffFilter extends OncePerRequestFilter {
+
+    private final GracefulBlueGreenService service;
+
+    public SessionHandoffFilter(GracefulBlueGreenService service) {
+        this.service = service;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String token = handoffToken(request);
+        if (token != null && service.vaadinSessionAttribute() != null) {
+            VaadinSession session = service.takeHandedOffSession(token);
+            if (session != null) {
+                request.getSession(true).setAttribute(service.vaadinSessionAttribute(), session);
+            }
+            Cookie clear = new Cookie(GracefulBlueGreenService.HANDOFF_COOKIE, "");
+            clear.setPath("/");
+            clear.setMaxAge(0);
+            response.addCookie(clear);
+        }
+        chain.doFilter(request, response);
+    }
+
+    private static String handoffToken(HttpServletRequest request) {
+        if (request.getCookies() == null) return null;
+        for (Cookie cookie : request.getCookies()) {
+            if (GracefulBlueGreenService.HANDOFF_COOKIE.equals(cookie.getName()) && !cookie.getValue().isEmpty()) {
+                return cookie.getValue();
+            }
+        }
+        return null;
+    }
+}
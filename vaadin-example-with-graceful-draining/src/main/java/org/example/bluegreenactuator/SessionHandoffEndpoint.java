@@ -0,0 +1,31 @@
+package org.example.bluegreenactuator;
+
+import org.example.GracefulBlueGreenService;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Actuator endpoint called by the deploy script (SESSION_HANDOFF_PATH) right after the new-version notification.
+ * POST /actuator/session-handoff  →  {"transferred": N, "remaining": M}
+ * Pinned sessions are handed over to the new slot, so the drain only waits for the ones that could not be.
+ */
+@Component
+@Endpoint(id = "session-handoff")
+public class SessionHandoffEndpoint {
+
+    private final GracefulBlueGreenService service;
+
+    public SessionHandoffEndpoint(GracefulBlueGreenService service) {
+        this.service = service;
+    }
+
+    @WriteOperation
+    public Map<String, Integer> handoff() throws IOException {
+        int transferred = service.handoffPinnedSessions();
+        return Map.of("transferred", transferred, "remaining", service.fixedCount());
+    }
+}
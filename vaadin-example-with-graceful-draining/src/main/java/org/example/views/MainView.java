@@ -1,5 +1,6 @@
 package org.example.views;
 
+import com.vaadin.flow.component.AttachEvent;
 import com.vaadin.flow.component.button.Button;
 import com.vaadin.flow.component.html.Div;
 import com.vaadin.flow.component.html.Emphasis;
@@ -8,46 +9,39 @@ import com.vaadin.flow.component.html.H3;
 import com.vaadin.flow.component.html.Paragraph;
 import com.vaadin.flow.component.notification.Notification;
 import com.vaadin.flow.component.orderedlayout.VerticalLayout;
+import com.vaadin.flow.router.PreserveOnRefresh;
 import com.vaadin.flow.router.Route;
+import com.vaadin.flow.server.VaadinService;
 import in.virit.color.NamedColor;
 import org.example.GracefulBlueGreenService;
 import org.vaadin.firitin.util.style.LumoProps;
 
+// Preserved, so the reload that moves a user to the new slot keeps the UI state (with a session handoff)
+@PreserveOnRefresh
 @Route
 public class MainView extends VerticalLayout {
 
-    private final GracefulBlueGreenService gracefulBlueGreenService;
+    // Transient so the session can be serialized for a session handoff; looked up again after that
+    private transient GracefulBlueGreenService gracefulBlueGreenService;
     private AppStats appStats = new AppStats();
+    private Paragraph slotInfo = new Paragraph();
 
     public MainView(GracefulBlueGreenService gracefulBlueGreenService) {
         this.gracefulBlueGreenService = gracefulBlueGreenService;
         add(new H1("GracefulBlueGreen demo"));
 
-        String slot = gracefulBlueGreenService.getSlot();
-        int port = 8080;
-        if ("green".equals(slot)) {
-            port = 8081;
-        }
-        add(new Paragraph("Current slot: " + slot + ", on port " + port + ""){{
-            if(!slot.equals("local")) {
-                NamedColor namedColor = NamedColor.of(slot);
-                getStyle().setBackgroundColor(namedColor.toRgbColor().withAlpha(0.2).toString());
-                getStyle().setBorder("4px solid " + namedColor.toString());
-                getStyle().setPadding(LumoProps.SPACE_M.var());
-            }
-        }});
+        add(slotInfo);
 
         add(new Emphasis("Users should be fixed to version/slot in critical phases of the app automatically, but giving that power to the user here for demo/test purposes."));
 
         add(new Button("Fix me to this slot!", event -> {
-            gracefulBlueGreenService.pinCurrentUi();
-            Notification.show("Now you are fixed to " + slot + ". On a new version, you'll have a chance to choose your upgrade time.")
+            gracefulBlueGreenService().pinCurrentUi();
+            Notification.show("Now you are fixed to " + gracefulBlueGreenService().getSlot() + ". On a new version, you'll have a chance to choose your upgrade time.")
                     .setPosition(Notification.Position.TOP_END);
             appStats.update();
         }));
 
         add(appStats);
-        appStats.update();
 
         add(new H3("Dummy UI"));
 
@@ -60,13 +54,39 @@ public class MainView extends VerticalLayout {
         add(button);
     }
 
+    @Override
+    protected void onAttach(AttachEvent attachEvent) {
+        super.onAttach(attachEvent);
+        // Runs on every (re)load as the view is preserved on refresh, also after a session handoff to the other slot
+        String slot = gracefulBlueGreenService().getSlot();
+        int port = 8080;
+        if ("green".equals(slot)) {
+            port = 8081;
+        }
+        slotInfo.setText("Current slot: " + slot + ", on port " + port + "");
+        if(!slot.equals("local")) {
+            NamedColor namedColor = NamedColor.of(slot);
+            slotInfo.getStyle().setBackgroundColor(namedColor.toRgbColor().withAlpha(0.2).toString());
+            slotInfo.getStyle().setBorder("4px solid " + namedColor.toString());
+            slotInfo.getStyle().setPadding(LumoProps.SPACE_M.var());
+        }
+        appStats.update();
+    }
+
+    private GracefulBlueGreenService gracefulBlueGreenService() {
+        if (gracefulBlueGreenService == null) {
+            gracefulBlueGreenService = VaadinService.getCurrent().getInstantiator().getOrCreate(GracefulBlueGreenService.class);
+        }
+        return gracefulBlueGreenService;
+    }
+
     class AppStats extends Div {
 
         public void update() {
             removeAll();
             add(new H3("Current app stats"));
-            add(new Paragraph("UIs fixed to this version(~ app server): " + gracefulBlueGreenService.fixedCount()));
-            add(new Paragraph("UIs total on this app server: " + gracefulBlueGreenService.uiCount()));
+            add(new Paragraph("UIs fixed to this version(~ app server): " + gracefulBlueGreenService().fixedCount()));
+            add(new Paragraph("UIs total on this app server: " + gracefulBlueGreenService().uiCount()));
         }
     }
 }